@@ -1,18 +1,61 @@
 package com.amazonaws.lambda.imageprocessor;
 
-import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.Raster;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 
+/**
+ * Finds the blobs of dark pixels in an image, or in a tile of a larger image
+ * for MergeImages to join, and writes an image of the blobs coloured in.
+ * <p>
+ * With the "stats" parameter only the statistics of the blobs are written, and
+ * GridImage never splits the image. It is instead decoded here a band of rows
+ * at a time, with bands as large as the memory of the function allows, and the
+ * rows are passed to a StreamingBlobFinder. The image reader cannot resume
+ * where a band ended, so each band is decoded by reading the image again from
+ * its start: an image of n bands costs about n * (n + 1) / 2 decodes of the
+ * whole image, which stays small while bands are a large part of the image.
+ *
+ * @author ryanorr
+ *
+ */
 public class BlobDetector extends Filter implements RequestHandler<S3Event, String> {
-	
+
+	/**
+	 * Added to the key of the image to give the key of the blob statistics
+	 * written in place of the blob image. Not .json, which the filtered bucket
+	 * takes for the manifest of a split image.
+	 */
+	public static final String STATS_SUFFIX = ".stats";
+
+	/**
+	 * The parameter asking for the blob statistics only.
+	 */
+	private static final String STATS_PARAM = "stats";
+
+	/**
+	 * The bytes of memory allowed for each pixel of a band decoded for the
+	 * statistics: the decoded band of up to 4 bytes a pixel, the thresholded band
+	 * and the buffers of the image reader.
+	 */
+	private static final int BAND_BYTES_PER_PIXEL = 8;
+
 	private static BufferedImage blobImage;
+	private static BlobFinder.Scan scan;
+	private static BlobTile tile;
+	private static boolean statsOnly;
+	private static List<BlobFinder.Blob> blobList;
 
 	// private static AmazonS3 s3 = AmazonS3ClientBuilder.standard().build();
 
@@ -35,12 +78,23 @@ public class BlobDetector extends Filter implements RequestHandler<S3Event, Stri
 				return "";
 			}
 
+			setFilterParams();
+
 			setImageType();
 
 			super.checkIfImageTypeIsValid();
 
 			super.downloadImageToInputStream();
 
+			// the statistics are a few kilobytes of json, with no image to encode, and
+			// the image is read a band of rows at a time rather than whole
+			if (statsOnly) {
+				findBlobsInBands();
+				super.uploadTextToS3(dstKey + STATS_SUFFIX,
+						JsonOperations.blobsToJson(srcWidth, srcHeight, blobList));
+				return "OK";
+			}
+
 			super.readSourceImage();
 
 			super.setImageHeightAndWidth();
@@ -51,6 +105,11 @@ public class BlobDetector extends Filter implements RequestHandler<S3Event, Stri
 			
 			super.uploadImageToS3();
 
+			// the components of a tile go beside it, for MergeImages to join up
+			if (tile != null) {
+				super.uploadTextToS3(dstKey + BlobTile.SIDECAR_SUFFIX, JsonOperations.blobTileToJson(tile));
+			}
+
 			return "OK";
 
 		} catch (Exception e) {
@@ -69,7 +128,45 @@ public class BlobDetector extends Filter implements RequestHandler<S3Event, Stri
 
 	@Override
 	public void setFilterParams() {
-		// no filter parameters necessary for blob detector
+		// an optional scan, "run", "block" or "pixel", "stats" for the blob
+		// statistics without the blob image, and the tile of a split image between
+		// the name and the image type
+		params = srcKey.split("_");
+		scan = BlobFinder.Scan.RUN;
+		tile = null;
+		statsOnly = false;
+		for (int i = 1; i < params.length - 1; i++) {
+			if (BlobTile.isParam(params[i])) {
+				tile = BlobTile.fromParam(params[i]);
+			} else if (STATS_PARAM.equalsIgnoreCase(params[i])) {
+				statsOnly = true;
+			} else {
+				scan = BlobFinder.Scan.fromParam(params[i]);
+			}
+		}
+		// GridImage never splits an image for the statistics, so a tile is only
+		// ever for its image
+		if (tile != null) {
+			statsOnly = false;
+		}
+	}
+
+	/**
+	 * Checks if the blob detector was asked for the blob statistics only.
+	 * 
+	 * @param filterParams the parameters of the filter, may be null
+	 * @return true if one of the parameters is "stats"
+	 */
+	public static boolean isStatsOnly(String[] filterParams) {
+		if (filterParams == null) {
+			return false;
+		}
+		for (String param : filterParams) {
+			if (STATS_PARAM.equalsIgnoreCase(param)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
@@ -80,65 +177,57 @@ public class BlobDetector extends Filter implements RequestHandler<S3Event, Stri
 		for (int i = 0; i < params.length; i++) {
 			System.out.println(i + " : at this element : " + params[i]);
 		}
-		imageType = params[1];
+		imageType = params[params.length - 1];
 	}
 
 	@Override
 	public void filterOperation() {
-		// get raw image data
-		Raster raster = srcImage.getData();
-		DataBuffer buffer = raster.getDataBuffer();
-
-		int type = buffer.getDataType();
-
-		if (type != DataBuffer.TYPE_BYTE) {
-			System.err.println("Wrong image data type");
-			BufferedImage newImage = new BufferedImage(srcWidth, srcHeight, BufferedImage.TYPE_3BYTE_BGR);
-			Graphics2D graphics = newImage.createGraphics();
-			graphics.drawImage(srcImage, 0, 0, null);
-			raster = newImage.getData();
-			buffer = raster.getDataBuffer();
-			// System.exit(1);
-		}
-
-		if (buffer.getNumBanks() != 1) {
-			System.err.println("Wrong image data format");
-			System.exit(1);
-		}
-
-		DataBufferByte byteBuffer = (DataBufferByte) buffer;
-		byte[] srcData = byteBuffer.getData(0);
-
-		// Sanity check image
-		if (srcWidth * srcHeight * 3 != srcData.length) {
-			System.err.println("Unexpected image data size. Should be RGB image");
-			System.exit(1);
-		}
-
 		// Output Image info
-		System.out.printf("Loaded image: '%s', width: %d, height: %d, num bytes: %d\n", srcKey, srcWidth, srcHeight,
-				srcData.length);
-
-		// Create Monochrome version - using basic threshold technique
-		byte[] monoData = new byte[srcWidth * srcHeight];
-		int srcPtr = 0;
-		int monoPtr = 0;
-
-		while (srcPtr < srcData.length) {
-			int val = ((srcData[srcPtr] & 0xFF) + (srcData[srcPtr + 1] & 0xFF) + (srcData[srcPtr + 2] & 0xFF)) / 3;
-			monoData[monoPtr] = (val > 128) ? (byte) 0xFF : 0;
-
-			srcPtr += 3;
-			monoPtr += 1;
+		System.out.printf("Loaded image: '%s', width: %d, height: %d, layout: %s\n", srcKey, srcWidth, srcHeight,
+				srcRaster.getLayout());
+
+		// Create Monochrome version - using basic threshold technique, read straight
+		// from the pixels of the image. The run scan reads a bit per pixel, with the
+		// dark pixels set, the others a byte per pixel
+		BinaryPlane monoPlane = null;
+		byte[] monoData = null;
+		if (scan == BlobFinder.Scan.RUN) {
+			monoPlane = new BinaryPlane(srcWidth, srcHeight);
+			srcRaster.findDark(128, monoPlane);
+		} else {
+			monoData = new byte[srcWidth * srcHeight];
+			srcRaster.thresholdMean(128, monoData);
 		}
 
-		byte[] dstData = new byte[srcData.length];
-
 		// Create Blob Finder
 		BlobFinder finder = new BlobFinder(srcWidth, srcHeight);
+		// runs by default, the pixel scan labels strips of the image on the cores
+		// given to the function
+		finder.setScan(scan);
+		finder.setParallelism(Runtime.getRuntime().availableProcessors());
+
+		if (tile != null) {
+			// a tile of a larger image, the image holds the component of each pixel
+			// and MergeImages joins the components and colours the blobs
+			if (tile.getCore().width != srcWidth || tile.getCore().height != srcHeight) {
+				throw new IllegalArgumentException("Tile " + srcKey + " does not match its key");
+			}
+			blobImage = new BufferedImage(srcWidth, srcHeight, BufferedImage.TYPE_INT_RGB);
+			int[] components = ((DataBufferInt) blobImage.getRaster().getDataBuffer()).getData();
+			tile = monoPlane != null ? finder.detectTile(monoPlane, tile.getCore(), components)
+					: finder.detectTile(monoData, (byte) 0, tile.getCore(), components);
+			System.out.printf("Found %d components in tile %s\n", tile.getComponentCount(), tile.toParam());
+			return;
+		}
+
+		byte[] dstData = new byte[srcWidth * srcHeight * 3];
 
-		ArrayList<BlobFinder.Blob> blobList = new ArrayList<BlobFinder.Blob>();
-		finder.detectBlobs(monoData, dstData, 0, -1, (byte) 0, blobList);
+		blobList = new ArrayList<BlobFinder.Blob>();
+		if (monoPlane != null) {
+			finder.detectBlobs(monoPlane, dstData, 0, -1, blobList);
+		} else {
+			finder.detectBlobs(monoData, dstData, 0, -1, (byte) 0, blobList);
+		}
 
 		// List Blobs
 		System.out.printf("Found %d blobs:\n", blobList.size());
@@ -151,4 +240,57 @@ public class BlobDetector extends Filter implements RequestHandler<S3Event, Stri
 		blobImage = dstFrame.getImage();
 		
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Finds the blobs of the downloaded image for the statistics, decoding it a
+	 * band of rows at a time and passing the rows to a StreamingBlobFinder. No
+	 * more than a band of the image is held at once, so images larger than the
+	 * memory of the function can be measured. A band takes up to half of the
+	 * memory, so most images are decoded whole. The blobs are listed as they are
+	 * finished, and the scan is not used.
+	 */
+	private void findBlobsInBands() throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(objectData);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IllegalArgumentException("No reader for " + srcKey);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, false, true);
+				srcWidth = reader.getWidth(0);
+				srcHeight = reader.getHeight(0);
+				// a decoded band is held in one array, of up to 4 bytes a pixel
+				long bandPixels = Math.min(Integer.MAX_VALUE / 4,
+						Runtime.getRuntime().maxMemory() / 2 / BAND_BYTES_PER_PIXEL);
+				int bandRows = (int) Math.max(1, Math.min(srcHeight, bandPixels / srcWidth));
+				System.out.printf("Reading image: '%s', width: %d, height: %d, in bands of %d rows\n", srcKey,
+						srcWidth, srcHeight, bandRows);
+
+				blobList = new ArrayList<BlobFinder.Blob>();
+				StreamingBlobFinder finder = new StreamingBlobFinder(srcWidth, 0, -1, (byte) 0, blobList::add);
+				ImageReadParam param = reader.getDefaultReadParam();
+				byte[] monoData = null;
+				for (int y = 0; y < srcHeight; y += bandRows) {
+					int rows = Math.min(bandRows, srcHeight - y);
+					param.setSourceRegion(new Rectangle(0, y, srcWidth, rows));
+					BufferedImage band = reader.read(0, param);
+					if (monoData == null || monoData.length != srcWidth * rows) {
+						monoData = new byte[srcWidth * rows];
+					}
+					new RasterAccess(band).thresholdMean(128, monoData);
+					for (int row = 0; row < rows; row++) {
+						finder.addRow(monoData, row * srcWidth);
+					}
+				}
+				finder.finish();
+				System.out.printf("Found %d blobs\n", blobList.size());
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -4,64 +4,306 @@ package com.amazonaws.lambda.imageprocessor;
 // http://www.labbookpages.co.uk
 // Please use however you like. I'd be happy to hear any feedback or comments.
 
+import java.awt.Rectangle;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntPredicate;
 
 public class BlobFinder {
-	private byte[][] COLOUR_ARRAY = { { (byte) 103, (byte) 121, (byte) 255 }, { (byte) 249, (byte) 255, (byte) 139 },
+
+	/**
+	 * The ways the image can be scanned to label it.
+	 */
+	public enum Scan {
+		/**
+		 * Pixel by pixel, reading the labels of four neighbours. The only scan
+		 * that labels strips of the image in parallel.
+		 */
+		PIXEL,
+
+		/**
+		 * Two by two blocks of pixels, which are all connected to each other and
+		 * share a label. A table made up front gives the neighbouring blocks each
+		 * block must join, from the pixels that touch it, so there are about a
+		 * quarter as many labels to read and unions to make. Single threaded.
+		 */
+		BLOCK,
+
+		/**
+		 * Runs of foreground pixels along each row, each joined to the runs it
+		 * touches in the row before. The runs are kept in place of a label for
+		 * every pixel, so the time and memory grow with the number of runs, which
+		 * suits images that are mostly background. Single threaded.
+		 */
+		RUN;
+
+		/**
+		 * Returns the scan named by a key parameter, ignoring case.
+		 *
+		 * @param param the parameter from the file name, eg. "run"
+		 * @return the scan
+		 * @throws IllegalArgumentException if no scan has that name
+		 */
+		public static Scan fromParam(String param) throws IllegalArgumentException {
+			return valueOf(param.toUpperCase());
+		}
+	}
+
+	static final byte[][] COLOUR_ARRAY = { { (byte) 103, (byte) 121, (byte) 255 }, { (byte) 249, (byte) 255, (byte) 139 },
 			{ (byte) 140, (byte) 255, (byte) 127 }, { (byte) 167, (byte) 254, (byte) 255 },
 			{ (byte) 255, (byte) 111, (byte) 71 } };
 
+	/**
+	 * Strips of fewer rows are not worth a thread of their own.
+	 */
+	private static final int MIN_STRIP_ROWS = 16;
+
+	/**
+	 * The pixels of a block and of the blocks around it that decide which
+	 * neighbouring blocks it joins. X is the block, with pixels a b / c d, and
+	 * P, Q, R and S its neighbours. Only the pixels of the neighbours next to
+	 * X matter.
+	 * 
+	 * <pre>
+	 *  P     Q     R
+	 *    p q2 q3 r
+	 *  S s1  a  b
+	 *    s3  c  d
+	 * </pre>
+	 */
+	private static final int A = 1, B = 2, C = 4, D = 8, P = 16, Q2 = 32, Q3 = 64, R = 128, S1 = 256, S3 = 512;
+
+	/**
+	 * The neighbouring blocks to join, in the order they are read.
+	 */
+	private static final int JOIN_P = 1, JOIN_Q = 2, JOIN_R = 4, JOIN_S = 8;
+
+	/**
+	 * The blocks to join for each pattern of a, b, c and the neighbouring pixels,
+	 * with d dropped, since it touches no neighbour. Where two of the neighbours
+	 * already share a label because their own pixels touch, only one of them is
+	 * joined.
+	 */
+	private static final byte[] BLOCK_JOINS = new byte[1 << 9];
+
+	static {
+		for (int pattern = 0; pattern < BLOCK_JOINS.length; pattern++) {
+			int pixels = (pattern & (A | B | C)) | ((pattern << 1) & ~(A | B | C | D));
+			boolean[] touches = new boolean[4];
+			touches[0] = (pixels & A) != 0 && (pixels & P) != 0;
+			touches[1] = (pixels & (A | B)) != 0 && (pixels & (Q2 | Q3)) != 0;
+			touches[2] = (pixels & B) != 0 && (pixels & R) != 0;
+			touches[3] = (pixels & (A | C)) != 0 && (pixels & (S1 | S3)) != 0;
+
+			// neighbours whose pixels touch were joined when the later of them was
+			// labelled, P-Q by p and q2, Q-R by q3 and r, P-S by p and s1, Q-S by
+			// q2 and s1
+			int[] group = { 0, 1, 2, 3 };
+			joinGroups(group, 0, 1, (pixels & P) != 0 && (pixels & Q2) != 0);
+			joinGroups(group, 1, 2, (pixels & Q3) != 0 && (pixels & R) != 0);
+			joinGroups(group, 0, 3, (pixels & P) != 0 && (pixels & S1) != 0);
+			joinGroups(group, 1, 3, (pixels & Q2) != 0 && (pixels & S1) != 0);
+
+			int joins = 0;
+			boolean[] joined = new boolean[4];
+			for (int n = 0; n < 4; n++) {
+				if (touches[n] && !joined[group[n]]) {
+					joined[group[n]] = true;
+					joins |= 1 << n;
+				}
+			}
+			BLOCK_JOINS[pattern] = (byte) joins;
+		}
+	}
+
+	private static void joinGroups(int[] group, int n1, int n2, boolean join) {
+		if (!join)
+			return;
+		int from = group[n2];
+		int to = group[n1];
+		for (int n = 0; n < group.length; n++) {
+			if (group[n] == from)
+				group[n] = to;
+		}
+	}
+
+	/**
+	 * The mass, bounds and first pixel of each pattern of a b c d, relative to the
+	 * top left of the block.
+	 */
+	private static final int[] BLOCK_MASS = new int[16];
+	private static final int[] BLOCK_X_MIN = new int[16];
+	private static final int[] BLOCK_X_MAX = new int[16];
+	private static final int[] BLOCK_Y_MIN = new int[16];
+	private static final int[] BLOCK_Y_MAX = new int[16];
+	private static final int[] BLOCK_FIRST_X = new int[16];
+
+	/**
+	 * The sums of x, y and x*y over the pixels of each pattern of a b c d,
+	 * relative to the top left of the block. As x and y are 0 or 1, these are
+	 * also the sums of x*x and y*y.
+	 */
+	private static final int[] BLOCK_SUM_X = new int[16];
+	private static final int[] BLOCK_SUM_Y = new int[16];
+	private static final int[] BLOCK_SUM_XY = new int[16];
+
+	static {
+		for (int pattern = 1; pattern < 16; pattern++) {
+			BLOCK_MASS[pattern] = Integer.bitCount(pattern);
+			BLOCK_X_MIN[pattern] = (pattern & (A | C)) != 0 ? 0 : 1;
+			BLOCK_X_MAX[pattern] = (pattern & (B | D)) != 0 ? 1 : 0;
+			BLOCK_Y_MIN[pattern] = (pattern & (A | B)) != 0 ? 0 : 1;
+			BLOCK_Y_MAX[pattern] = (pattern & (C | D)) != 0 ? 1 : 0;
+			int firstRow = BLOCK_Y_MIN[pattern] == 0 ? pattern : pattern >> 2;
+			BLOCK_FIRST_X[pattern] = (firstRow & A) != 0 ? 0 : 1;
+			BLOCK_SUM_X[pattern] = Integer.bitCount(pattern & (B | D));
+			BLOCK_SUM_Y[pattern] = Integer.bitCount(pattern & (C | D));
+			BLOCK_SUM_XY[pattern] = Integer.bitCount(pattern & D);
+		}
+	}
+
 	private int width;
 	private int height;
+	private int parallelism;
+	private Scan scan;
 
 	private int[] labelBuffer;
 
-	private int[] labelTable;
-	private int[] xMinTable;
-	private int[] xMaxTable;
-	private int[] yMinTable;
-	private int[] yMaxTable;
-	private int[] massTable;
+	/**
+	 * The label of each block when scanning blocks.
+	 */
+	private int[] blockBuffer;
+	private int blockWidth;
 
-	static class Blob {
+	/**
+	 * The runs of the image and their labels when scanning runs.
+	 */
+	private RunList runs;
+
+	/**
+	 * The scan the last image was labelled with.
+	 */
+	private Scan labelled;
+
+	private LabelTable labels;
+
+	public static class Blob {
 		public int xMin;
 		public int xMax;
 		public int yMin;
 		public int yMax;
 		public int mass;
 
+		/**
+		 * The mean x and y of the pixels of the blob.
+		 */
+		public double xCentroid;
+		public double yCentroid;
+
+		/**
+		 * The angle of the major axis of the blob from the x axis towards the y
+		 * axis, which points down the image, in radians from -pi/2 to pi/2.
+		 */
+		public double orientation;
+
+		/**
+		 * The eccentricity of the ellipse with the same second moments as the
+		 * blob, 0 for a circle and towards 1 for a line.
+		 */
+		public double eccentricity;
+
+		/**
+		 * Creates a blob without its centroid and shape, which are left NaN.
+		 */
 		public Blob(int xMin, int xMax, int yMin, int yMax, int mass) {
 			this.xMin = xMin;
 			this.xMax = xMax;
 			this.yMin = yMin;
 			this.yMax = yMax;
 			this.mass = mass;
+			this.xCentroid = Double.NaN;
+			this.yCentroid = Double.NaN;
+			this.orientation = Double.NaN;
+			this.eccentricity = Double.NaN;
+		}
+
+		/**
+		 * Creates a blob with its centroid and shape worked out from the sums of x,
+		 * y, x*x, y*y and x*y over its pixels.
+		 */
+		public Blob(int xMin, int xMax, int yMin, int yMax, int mass, long sumX, long sumY, long sumXX, long sumYY,
+				long sumXY) {
+			this(xMin, xMax, yMin, yMax, mass);
+			xCentroid = (double) sumX / mass;
+			yCentroid = (double) sumY / mass;
+
+			// the central second moments, and the eigenvalues of their matrix
+			double muXX = (double) sumXX / mass - xCentroid * xCentroid;
+			double muYY = (double) sumYY / mass - yCentroid * yCentroid;
+			double muXY = (double) sumXY / mass - xCentroid * yCentroid;
+			double mean = (muXX + muYY) / 2;
+			double spread = Math.hypot((muXX - muYY) / 2, muXY);
+			double major = mean + spread;
+			double minor = Math.max(0, mean - spread);
+			orientation = 0.5 * Math.atan2(2 * muXY, muXX - muYY);
+			eccentricity = major > 0 ? Math.sqrt(1 - minor / major) : 0;
 		}
 
 		public String toString() {
-			return String.format("X: %4d -> %4d, Y: %4d -> %4d, mass: %6d", xMin, xMax, yMin, yMax, mass);
+			return String.format(
+					"X: %4d -> %4d, Y: %4d -> %4d, mass: %6d, centroid: (%.1f, %.1f), orientation: %.1f deg, eccentricity: %.3f",
+					xMin, xMax, yMin, yMax, mass, xCentroid, yCentroid, Math.toDegrees(orientation), eccentricity);
 		}
 	}
 
 	public BlobFinder(int width, int height) {
 		this.width = width;
 		this.height = height;
+		this.parallelism = 1;
+		this.scan = Scan.PIXEL;
+		this.blockWidth = (width + 1) / 2;
 
-		labelBuffer = new int[width * height];
+		// The label tables grow with the number of labels the image needs, and the
+		// label buffer of the scan is allocated when first used
+	}
 
-		// The maximum number of blobs is given by an image filled with equally spaced
-		// single pixel
-		// blobs. For images with less blobs, memory will be wasted, but this approach
-		// is simpler and
-		// probably quicker than dynamically resizing arrays
-		int tableSize = width * height / 4;
+	/**
+	 * @return the way the image is scanned, PIXEL by default
+	 */
+	public Scan getScan() {
+		return scan;
+	}
+
+	/**
+	 * Sets the way the image is scanned. The blobs and their colours are the
+	 * same for every scan.
+	 *
+	 * @param scan the scan
+	 */
+	public void setScan(Scan scan) {
+		this.scan = scan;
+	}
 
-		labelTable = new int[tableSize];
-		xMinTable = new int[tableSize];
-		xMaxTable = new int[tableSize];
-		yMinTable = new int[tableSize];
-		yMaxTable = new int[tableSize];
-		massTable = new int[tableSize];
+	/**
+	 * @return the number of threads used to label the image, 1 by default
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the number of threads used to label the image. The image is cut into
+	 * horizontal strips that are labelled at the same time, each with its own
+	 * table of labels. The tables are then joined end to end and the labels that
+	 * meet across the edges of the strips are joined. The blobs and their colours
+	 * are the same for any number of threads. Only used by the PIXEL scan.
+	 *
+	 * @param parallelism the number of threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException();
+		this.parallelism = parallelism;
 	}
 
 	public List<Blob> detectBlobs(byte[] srcData, byte[] dstData, int minBlobMass, int maxBlobMass, byte matchVal,
@@ -70,79 +312,479 @@ public class BlobFinder {
 			throw new IllegalArgumentException(
 					"Bad array lengths: srcData 1 byte/pixel (mono), dstData 3 bytes/pixel (RGB)");
 
+		label(srcData, matchVal);
+		return collectBlobs(i -> srcData[i] == matchVal, dstData, minBlobMass, maxBlobMass, blobList);
+	}
+
+	/**
+	 * Finds the blobs of the set pixels of a binary plane, in the same way as
+	 * the byte per pixel detectBlobs. The plane is always labelled with the RUN
+	 * scan, the runs found a word at a time, so words of background are skipped
+	 * in one comparison; the scan set on the finder is not used.
+	 *
+	 * @param plane the pixels, set for the pixels of blobs
+	 */
+	public List<Blob> detectBlobs(BinaryPlane plane, byte[] dstData, int minBlobMass, int maxBlobMass,
+			List<Blob> blobList) {
+		if (plane.getWidth() != width || plane.getHeight() != height)
+			throw new IllegalArgumentException("Plane does not match the finder");
+		if (dstData != null && dstData.length != width * height * 3)
+			throw new IllegalArgumentException("Bad array length: dstData 3 bytes/pixel (RGB)");
+
+		labelRuns(plane);
+		return collectBlobs(i -> plane.get(i % width, i / width), dstData, minBlobMass, maxBlobMass, blobList);
+	}
+
+	/**
+	 * Lists the blobs of the labelled image and colours them.
+	 *
+	 * @param foreground whether the pixel at an index belongs to a blob
+	 */
+	private List<Blob> collectBlobs(IntPredicate foreground, byte[] dstData, int minBlobMass, int maxBlobMass,
+			List<Blob> blobList) {
+		// Blobs that butt against corners are ignored
+		int[] cornerLabels = new int[4];
+		int[][] corners = { { 0, 0 }, { width - 1, 0 }, { 0, height - 1 }, { width - 1, height - 1 } };
+		for (int c = 0; c < corners.length; c++) {
+			int x = corners[c][0];
+			int y = corners[c][1];
+			int l = foreground.test(y * width + x) ? labelAt(x, y) : 0;
+			cornerLabels[c] = l == 0 ? 0 : labels.find(l);
+		}
+
+		// Push min/max x,y values towards minimum label
+		labels.resolve();
+
+		if (blobList == null)
+			blobList = new ArrayList<Blob>();
+
+		// Blobs are listed last first, in the raster order of their first pixels
+		int[] roots = labels.rootsInRasterOrder();
+		for (int r = roots.length - 1; r >= 0; r--) {
+			int i = roots[r];
+			if (i == cornerLabels[0] || i == cornerLabels[1] || i == cornerLabels[2] || i == cornerLabels[3])
+				continue;
+
+			int mass = labels.getMass(i);
+			if (mass >= minBlobMass && (mass <= maxBlobMass || maxBlobMass == -1)) {
+				blobList.add(labels.createBlob(i));
+			}
+		}
+
+		// If dst buffer provided, fill with coloured blobs
+		if (dstData != null && labelled == Scan.RUN) {
+			int[] colours = labels.numberComponents(roots);
+			Arrays.fill(dstData, (byte) 0);
+			for (int y = 0; y < height; y++) {
+				for (int r = runs.rowFirst(y); r < runs.rowEnd(y); r++) {
+					byte[] colour = COLOUR_ARRAY[colours[runs.getLabel(r)] % COLOUR_ARRAY.length];
+					int dstEnd = (y * width + runs.getEnd(r)) * 3;
+					for (int dstPtr = (y * width + runs.getStart(r)) * 3; dstPtr < dstEnd; dstPtr += 3) {
+						dstData[dstPtr] = colour[0];
+						dstData[dstPtr + 1] = colour[1];
+						dstData[dstPtr + 2] = colour[2];
+					}
+				}
+			}
+		} else if (dstData != null) {
+			// Renumber lables into sequential numbers, starting with 0
+			int[] colours = labels.numberComponents(roots);
+
+			int srcPtr = 0;
+			int dstPtr = 0;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (foreground.test(srcPtr)) {
+						int c = colours[labelAt(x, y)] % COLOUR_ARRAY.length;
+						dstData[dstPtr] = COLOUR_ARRAY[c][0];
+						dstData[dstPtr + 1] = COLOUR_ARRAY[c][1];
+						dstData[dstPtr + 2] = COLOUR_ARRAY[c][2];
+					} else {
+						dstData[dstPtr] = 0;
+						dstData[dstPtr + 1] = 0;
+						dstData[dstPtr + 2] = 0;
+					}
+
+					srcPtr++;
+					dstPtr += 3;
+				}
+			}
+		}
+
+		return blobList;
+	}
+
+	/**
+	 * Finds every component in a tile of a larger image, for MergeImages to join
+	 * to those of the other tiles. Unlike detectBlobs, no component is left out
+	 * for touching a corner or for its mass, since it may go on into another
+	 * tile.
+	 *
+	 * @param srcData the pixels of the tile, 1 byte each
+	 * @param matchVal the value of the pixels of blobs
+	 * @param core where the tile sits in the whole image
+	 * @param components filled with the number of the component of each pixel,
+	 *            counting from 1 in the raster order of their first pixels, or 0
+	 *            for the background
+	 * @return the tile, with the bounds, mass and first pixel of each component
+	 * @throws IllegalArgumentException if the tile has more than
+	 *             BlobTile.MAX_COMPONENTS components
+	 */
+	public BlobTile detectTile(byte[] srcData, byte matchVal, Rectangle core, int[] components) {
+		if (core.width != width || core.height != height || components.length != srcData.length)
+			throw new IllegalArgumentException("Tile does not match the finder");
+
+		label(srcData, matchVal);
+		return collectTile(i -> srcData[i] == matchVal, core, components);
+	}
+
+	/**
+	 * Finds every component in a tile of a larger image given as a binary plane,
+	 * in the same way as the byte per pixel detectTile. The plane is always
+	 * labelled with the RUN scan.
+	 *
+	 * @param plane the pixels of the tile, set for the pixels of blobs
+	 */
+	public BlobTile detectTile(BinaryPlane plane, Rectangle core, int[] components) {
+		if (core.width != width || core.height != height || components.length != width * height)
+			throw new IllegalArgumentException("Tile does not match the finder");
+		if (plane.getWidth() != width || plane.getHeight() != height)
+			throw new IllegalArgumentException("Plane does not match the finder");
+
+		labelRuns(plane);
+		return collectTile(i -> plane.get(i % width, i / width), core, components);
+	}
+
+	/**
+	 * Lists the components of the labelled tile and numbers its pixels.
+	 *
+	 * @param foreground whether the pixel at an index belongs to a blob
+	 */
+	private BlobTile collectTile(IntPredicate foreground, Rectangle core, int[] components) {
+		labels.resolve();
+		int[] roots = labels.rootsInRasterOrder();
+		if (roots.length > BlobTile.MAX_COMPONENTS)
+			throw new IllegalArgumentException(
+					"Tile has " + roots.length + " components, more than its image can number");
+		int[] numbers = labels.numberComponents(roots);
+
+		BlobTile tile = new BlobTile(core);
+		tile.setComponentCount(roots.length);
+		for (int r = 0; r < roots.length; r++) {
+			int i = roots[r];
+			tile.setComponent(r, core.x + labels.getXMin(i), core.x + labels.getXMax(i), core.y + labels.getYMin(i),
+					core.y + labels.getYMax(i), labels.getMass(i), core.x + labels.getFirst(i) % width);
+
+			// the moments moved from the tile to the whole image
+			long mass = labels.getMass(i);
+			long sumX = labels.getSumX(i);
+			long sumY = labels.getSumY(i);
+			long x = core.x;
+			long y = core.y;
+			tile.setMoments(r, sumX + mass * x, sumY + mass * y, labels.getSumXX(i) + (2 * sumX + mass * x) * x,
+					labels.getSumYY(i) + (2 * sumY + mass * y) * y,
+					labels.getSumXY(i) + sumX * y + sumY * x + mass * x * y);
+		}
+
+		if (labelled == Scan.RUN) {
+			Arrays.fill(components, 0);
+			for (int y = 0; y < height; y++) {
+				for (int r = runs.rowFirst(y); r < runs.rowEnd(y); r++) {
+					Arrays.fill(components, y * width + runs.getStart(r), y * width + runs.getEnd(r),
+							numbers[runs.getLabel(r)] + 1);
+				}
+			}
+			return tile;
+		}
+
+		int srcPtr = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				components[srcPtr] = foreground.test(srcPtr) ? numbers[labelAt(x, y)] + 1 : 0;
+				srcPtr++;
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Labels the image with the scan set on the finder.
+	 */
+	private void label(byte[] srcData, byte matchVal) {
+		labelled = scan;
+		if (scan == Scan.BLOCK) {
+			labelBlocks(srcData, matchVal);
+		} else if (scan == Scan.RUN) {
+			labelRuns(srcData, matchVal);
+		} else {
+			if (labelBuffer == null)
+				labelBuffer = new int[width * height];
+			int strips = parallelism == 1 ? 1 : Math.min(parallelism, height / MIN_STRIP_ROWS);
+			if (strips <= 1) {
+				labels = new LabelTable(width);
+				labelStrip(srcData, matchVal, 0, height, labels);
+			} else {
+				labelStrips(srcData, matchVal, strips);
+			}
+		}
+	}
+
+	/**
+	 * @return the label of a foreground pixel
+	 */
+	private int labelAt(int x, int y) {
+		switch (labelled) {
+		case BLOCK:
+			return blockBuffer[(y >> 1) * blockWidth + (x >> 1)];
+		case RUN:
+			return runs.labelAt(x, y);
+		default:
+			return labelBuffer[y * width + x];
+		}
+	}
+
+	/**
+	 * Labels a binary plane a run at a time, finding the runs of set pixels a
+	 * word at a time.
+	 */
+	private void labelRuns(BinaryPlane plane) {
+		startRuns();
+		for (int y = 0; y < height; y++) {
+			runs.startRow(y);
+			int above = y > 0 ? runs.rowFirst(y - 1) : 0;
+			int aboveEnd = runs.rowFirst(y);
+			int x = plane.nextSetBit(0, y);
+			while (x < width) {
+				int end = plane.nextClearBit(x, y);
+				above = labelRun(x, end, y, above, aboveEnd);
+				x = plane.nextSetBit(end, y);
+			}
+		}
+		runs.startRow(height);
+	}
+
+	/**
+	 * Labels the image a run at a time.
+	 */
+	private void labelRuns(byte[] srcData, byte matchVal) {
+		startRuns();
+		for (int y = 0; y < height; y++) {
+			runs.startRow(y);
+			int above = y > 0 ? runs.rowFirst(y - 1) : 0;
+			int aboveEnd = runs.rowFirst(y);
+			int row = y * width;
+			int x = 0;
+			while (true) {
+				while (x < width && srcData[row + x] != matchVal)
+					x++;
+				if (x == width)
+					break;
+				int end = x + 1;
+				while (end < width && srcData[row + end] == matchVal)
+					end++;
+				above = labelRun(x, end, y, above, aboveEnd);
+				x = end;
+			}
+		}
+		runs.startRow(height);
+	}
+
+	private void startRuns() {
+		labelled = Scan.RUN;
+		if (runs == null)
+			runs = new RunList(height);
+		runs.clear();
+		labels = new LabelTable(width);
+	}
+
+	/**
+	 * Labels a run of the row being labelled. The run takes the label of the
+	 * first run it touches in the row above, from one pixel before it to one
+	 * after, and is joined to the others, or else a new label.
+	 *
+	 * @param x0 the x of the first pixel of the run
+	 * @param x1 the x after the last pixel of the run
+	 * @param above the first run of the row above that can touch the run
+	 * @param aboveEnd the run after the last of the row above
+	 * @return the first run of the row above that can touch the next run
+	 */
+	private int labelRun(int x0, int x1, int y, int above, int aboveEnd) {
+		while (above < aboveEnd && runs.getEnd(above) < x0)
+			above++;
+
+		int label = 0;
+		for (int r = above; r < aboveEnd && runs.getStart(r) <= x1; r++) {
+			int l = runs.getLabel(r);
+			if (label == 0)
+				label = l;
+			else if (l != label)
+				labels.union(label, l);
+		}
+
+		int first = y * width + x0;
+		if (label == 0)
+			label = labels.add(x0, x1 - 1, y, y, x1 - x0, first);
+		else
+			labels.addPixels(label, x0, x1 - 1, y, y, x1 - x0, first);
+		labels.addRunMoments(label, x0, x1, y);
+		runs.add(x0, x1, label);
+		return above;
+	}
+
+	/**
+	 * Labels the image in two by two blocks, reading the pixels around each block
+	 * only where they can touch its own pixels.
+	 */
+	private void labelBlocks(byte[] srcData, byte matchVal) {
+		int blockHeight = (height + 1) / 2;
+		if (blockBuffer == null)
+			blockBuffer = new int[blockWidth * blockHeight];
+		labels = new LabelTable(width);
+
+		for (int by = 0; by < blockHeight; by++) {
+			int y = by * 2;
+			boolean top = y > 0;
+			boolean bottom = y + 1 < height;
+			int block = by * blockWidth;
+			int srcPtr = y * width;
+			for (int x = 0; x < width; x += 2, block++, srcPtr += 2) {
+				boolean left = x > 0;
+				boolean right = x + 1 < width;
+
+				int pixels = 0;
+				if (srcData[srcPtr] == matchVal)
+					pixels |= A;
+				if (right && srcData[srcPtr + 1] == matchVal)
+					pixels |= B;
+				if (bottom && srcData[srcPtr + width] == matchVal)
+					pixels |= C;
+				if (bottom && right && srcData[srcPtr + width + 1] == matchVal)
+					pixels |= D;
+
+				if (pixels == 0) {
+					blockBuffer[block] = 0;
+					continue;
+				}
+
+				// Read only the neighbouring pixels next to a pixel of the block
+				if (top) {
+					int above = srcPtr - width;
+					if ((pixels & A) != 0 && left && srcData[above - 1] == matchVal)
+						pixels |= P;
+					if ((pixels & (A | B)) != 0) {
+						if (srcData[above] == matchVal)
+							pixels |= Q2;
+						if (right && srcData[above + 1] == matchVal)
+							pixels |= Q3;
+					}
+					if ((pixels & B) != 0 && x + 2 < width && srcData[above + 2] == matchVal)
+						pixels |= R;
+				}
+				if (left && (pixels & (A | C)) != 0) {
+					if (srcData[srcPtr - 1] == matchVal)
+						pixels |= S1;
+					if (bottom && srcData[srcPtr + width - 1] == matchVal)
+						pixels |= S3;
+				}
+
+				int own = pixels & (A | B | C | D);
+				int xMin = x + BLOCK_X_MIN[own];
+				int xMax = x + BLOCK_X_MAX[own];
+				int yMin = y + BLOCK_Y_MIN[own];
+				int yMax = y + BLOCK_Y_MAX[own];
+				int firstPixel = yMin * width + x + BLOCK_FIRST_X[own];
+
+				int joins = BLOCK_JOINS[(pixels & (A | B | C)) | ((pixels & ~(A | B | C | D)) >> 1)];
+				if (joins == 0) {
+					int label = labels.add(xMin, xMax, yMin, yMax, BLOCK_MASS[own], firstPixel);
+					addBlockMoments(label, own, x, y);
+					blockBuffer[block] = label;
+					continue;
+				}
+
+				// Take the label of the first neighbour joined, and join the others to it
+				int label = 0;
+				if ((joins & JOIN_P) != 0)
+					label = join(label, blockBuffer[block - blockWidth - 1]);
+				if ((joins & JOIN_Q) != 0)
+					label = join(label, blockBuffer[block - blockWidth]);
+				if ((joins & JOIN_R) != 0)
+					label = join(label, blockBuffer[block - blockWidth + 1]);
+				if ((joins & JOIN_S) != 0)
+					label = join(label, blockBuffer[block - 1]);
+				blockBuffer[block] = label;
+				labels.addPixels(label, xMin, xMax, yMin, yMax, BLOCK_MASS[own], firstPixel);
+				addBlockMoments(label, own, x, y);
+			}
+		}
+	}
+
+	/**
+	 * Adds the moments of the pixels of a block, with its top left at x, y.
+	 */
+	private void addBlockMoments(int label, int own, long x, long y) {
+		int mass = BLOCK_MASS[own];
+		int dx = BLOCK_SUM_X[own];
+		int dy = BLOCK_SUM_Y[own];
+		labels.addMoments(label, mass * x + dx, mass * y + dy, mass * x * x + (2 * x + 1) * dx,
+				mass * y * y + (2 * y + 1) * dy, mass * x * y + x * dy + y * dx + BLOCK_SUM_XY[own]);
+	}
+
+	private int join(int label, int neighbour) {
+		if (label == 0)
+			return neighbour;
+		labels.union(label, neighbour);
+		return label;
+	}
+
+	/**
+	 * Labels the rows from first up to but excluding last, ignoring the rows
+	 * above, and records the bounds and mass of each label. Labels that meet are
+	 * joined in the table.
+	 */
+	private void labelStrip(byte[] srcData, byte matchVal, int firstRow, int lastRow, LabelTable table) {
 		// This is the neighbouring pixel pattern. For position X, A, B, C & D are
 		// checked
 		// A B C
 		// D X
 
-		int srcPtr = 0;
-		int aPtr = -width - 1;
-		int bPtr = -width;
-		int cPtr = -width + 1;
-		int dPtr = -1;
-
-		int label = 1;
+		int srcPtr = firstRow * width;
+		int aPtr = srcPtr - width - 1;
+		int bPtr = srcPtr - width;
+		int cPtr = srcPtr - width + 1;
+		int dPtr = srcPtr - 1;
 
 		// Iterate through pixels looking for connected regions. Assigning labels
-		for (int y = 0; y < height; y++) {
+		for (int y = firstRow; y < lastRow; y++) {
 			for (int x = 0; x < width; x++) {
 				labelBuffer[srcPtr] = 0;
 
 				// Check if on foreground pixel
 				if (srcData[srcPtr] == matchVal) {
 					// Find label for neighbours (0 if out of range)
-					int aLabel = (x > 0 && y > 0) ? labelTable[labelBuffer[aPtr]] : 0;
-					int bLabel = (y > 0) ? labelTable[labelBuffer[bPtr]] : 0;
-					int cLabel = (x < width - 1 && y > 0) ? labelTable[labelBuffer[cPtr]] : 0;
-					int dLabel = (x > 0) ? labelTable[labelBuffer[dPtr]] : 0;
-
-					// Look for label with least value
-					int min = Integer.MAX_VALUE;
-					if (aLabel != 0 && aLabel < min)
-						min = aLabel;
-					if (bLabel != 0 && bLabel < min)
-						min = bLabel;
-					if (cLabel != 0 && cLabel < min)
-						min = cLabel;
-					if (dLabel != 0 && dLabel < min)
-						min = dLabel;
+					int aLabel = (x > 0 && y > firstRow) ? labelBuffer[aPtr] : 0;
+					int bLabel = (y > firstRow) ? labelBuffer[bPtr] : 0;
+					int cLabel = (x < width - 1 && y > firstRow) ? labelBuffer[cPtr] : 0;
+					int dLabel = (x > 0) ? labelBuffer[dPtr] : 0;
 
 					// If no neighbours in foreground
-					if (min == Integer.MAX_VALUE) {
-						labelBuffer[srcPtr] = label;
-						labelTable[label] = label;
-
-						// Initialise min/max x,y for label
-						yMinTable[label] = y;
-						yMaxTable[label] = y;
-						xMinTable[label] = x;
-						xMaxTable[label] = x;
-						massTable[label] = 1;
-
-						label++;
+					if (aLabel == 0 && bLabel == 0 && cLabel == 0 && dLabel == 0) {
+						labelBuffer[srcPtr] = table.add(x, y);
 					}
 
 					// Neighbour found
 					else {
-						// Label pixel with lowest label from neighbours
-						labelBuffer[srcPtr] = min;
-
-						// Update min/max x,y for label
-						yMaxTable[min] = y;
-						massTable[min]++;
-						if (x < xMinTable[min])
-							xMinTable[min] = x;
-						if (x > xMaxTable[min])
-							xMaxTable[min] = x;
+						// Label pixel with the first label from neighbours, and join the others to it
+						int first = dLabel != 0 ? dLabel : aLabel != 0 ? aLabel : bLabel != 0 ? bLabel : cLabel;
+						labelBuffer[srcPtr] = first;
+						table.addPixel(first, x, y);
 
 						if (aLabel != 0)
-							labelTable[aLabel] = min;
+							table.union(first, aLabel);
 						if (bLabel != 0)
-							labelTable[bLabel] = min;
+							table.union(first, bLabel);
 						if (cLabel != 0)
-							labelTable[cLabel] = min;
-						if (dLabel != 0)
-							labelTable[dLabel] = min;
+							table.union(first, cLabel);
 					}
 				}
 
@@ -153,84 +795,72 @@ public class BlobFinder {
 				dPtr++;
 			}
 		}
+	}
 
-		// Iterate through labels pushing min/max x,y values towards minimum label
-		if (blobList == null)
-			blobList = new ArrayList<Blob>();
-
-		for (int i = label - 1; i > 0; i--) {
-			if (labelTable[i] != i) {
-				if (xMaxTable[i] > xMaxTable[labelTable[i]])
-					xMaxTable[labelTable[i]] = xMaxTable[i];
-				if (xMinTable[i] < xMinTable[labelTable[i]])
-					xMinTable[labelTable[i]] = xMinTable[i];
-				if (yMaxTable[i] > yMaxTable[labelTable[i]])
-					yMaxTable[labelTable[i]] = yMaxTable[i];
-				if (yMinTable[i] < yMinTable[labelTable[i]])
-					yMinTable[labelTable[i]] = yMinTable[i];
-				massTable[labelTable[i]] += massTable[i];
-
-				int l = i;
-				while (l != labelTable[l])
-					l = labelTable[l];
-				labelTable[i] = l;
-			} else {
-				// Ignore blobs that butt against corners
-				if (i == labelBuffer[0])
-					continue; // Top Left
-				if (i == labelBuffer[width])
-					continue; // Top Right
-				if (i == labelBuffer[(width * height) - width + 1])
-					continue; // Bottom Left
-				if (i == labelBuffer[(width * height) - 1])
-					continue; // Bottom Right
-
-				if (massTable[i] >= minBlobMass && (massTable[i] <= maxBlobMass || maxBlobMass == -1)) {
-					Blob blob = new Blob(xMinTable[i], xMaxTable[i], yMinTable[i], yMaxTable[i], massTable[i]);
-					blobList.add(blob);
-				}
+	/**
+	 * Labels strips of rows on a pool of threads, then joins their tables and
+	 * the labels along the edges between the strips.
+	 */
+	private void labelStrips(byte[] srcData, byte matchVal, int strips) {
+		LabelTable[] tables = new LabelTable[strips];
+		int[] offsets = new int[strips];
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			runStrips(pool, strips, (strip, firstRow, lastRow) -> {
+				tables[strip] = new LabelTable(width);
+				labelStrip(srcData, matchVal, firstRow, lastRow, tables[strip]);
+			});
+
+			// the labels of each strip follow on from those of the strips above
+			labels = tables[0];
+			for (int strip = 1; strip < strips; strip++) {
+				offsets[strip] = labels.append(tables[strip]);
 			}
-		}
-
-		// If dst buffer provided, fill with coloured blobs
-		if (dstData != null) {
-			for (int i = label - 1; i > 0; i--) {
-				if (labelTable[i] != i) {
-					int l = i;
-					while (l != labelTable[l])
-						l = labelTable[l];
-					labelTable[i] = l;
+			runStrips(pool, strips, (strip, firstRow, lastRow) -> {
+				int offset = offsets[strip];
+				if (offset == 0)
+					return;
+				for (int i = firstRow * width; i < lastRow * width; i++) {
+					if (labelBuffer[i] != 0)
+						labelBuffer[i] += offset;
 				}
-			}
+			});
+		} finally {
+			pool.shutdown();
+		}
 
-			// Renumber lables into sequential numbers, starting with 0
-			int newLabel = 0;
-			for (int i = 1; i < label; i++) {
-				if (labelTable[i] == i)
-					labelTable[i] = newLabel++;
-				else
-					labelTable[i] = labelTable[labelTable[i]];
+		for (int strip = 1; strip < strips; strip++) {
+			int offset = height * strip / strips * width;
+			for (int x = 0; x < width; x++) {
+				int l = labelBuffer[offset + x];
+				if (l == 0)
+					continue;
+				int above = offset + x - width;
+				if (x > 0 && labelBuffer[above - 1] != 0)
+					labels.union(l, labelBuffer[above - 1]);
+				if (labelBuffer[above] != 0)
+					labels.union(l, labelBuffer[above]);
+				if (x < width - 1 && labelBuffer[above + 1] != 0)
+					labels.union(l, labelBuffer[above + 1]);
 			}
+		}
+	}
 
-			srcPtr = 0;
-			int dstPtr = 0;
-			while (srcPtr < srcData.length) {
-				if (srcData[srcPtr] == matchVal) {
-					int c = labelTable[labelBuffer[srcPtr]] % COLOUR_ARRAY.length;
-					dstData[dstPtr] = COLOUR_ARRAY[c][0];
-					dstData[dstPtr + 1] = COLOUR_ARRAY[c][1];
-					dstData[dstPtr + 2] = COLOUR_ARRAY[c][2];
-				} else {
-					dstData[dstPtr] = 0;
-					dstData[dstPtr + 1] = 0;
-					dstData[dstPtr + 2] = 0;
-				}
+	/**
+	 * A task applied to one strip of rows.
+	 */
+	private interface StripOperation {
+		void apply(int strip, int firstRow, int lastRow);
+	}
 
-				srcPtr++;
-				dstPtr += 3;
-			}
+	private void runStrips(ForkJoinPool pool, int strips, StripOperation operation) {
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[strips];
+		for (int strip = 0; strip < strips; strip++) {
+			int s = strip;
+			tasks[strip] = pool.submit(() -> operation.apply(s, height * s / strips, height * (s + 1) / strips));
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
 		}
-
-		return blobList;
 	}
 }
@@ -0,0 +1,220 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.awt.Rectangle;
+
+/**
+ * One tile of an image split for the blob detector, with every component of
+ * foreground pixels found inside it. The tile is given to BlobDetector in its
+ * key as a single parameter, blobtile-x-y-width-height, giving where the tile
+ * sits in the whole image.
+ * <p>
+ * BlobDetector writes an image of the tile in which each pixel holds the
+ * number of its component, counting from 1 in the raster order of their first
+ * pixels, or 0 for the background. The bounds, mass, first pixel and moments of
+ * each component, in the coordinates of the whole image, are written beside it
+ * as a json sidecar. The corners of the tile and the masses of blobs do not matter
+ * until MergeImages has joined the components that cross between tiles.
+ *
+ * @author ryanorr
+ *
+ */
+public class BlobTile {
+
+	/**
+	 * Added to the key of the tile's image to give the key of its sidecar.
+	 */
+	public static final String SIDECAR_SUFFIX = ".blobs";
+
+	/**
+	 * The format of the images of tiles, which must be lossless to keep the
+	 * thresholded pixels and the component numbers as they are.
+	 */
+	public static final String TILE_IMAGE_TYPE = "png";
+
+	/**
+	 * The most components a tile can have, as their numbers are kept in the 24
+	 * RGB bits of the pixels of the tile image.
+	 */
+	public static final int MAX_COMPONENTS = 0xFFFFFF;
+
+	private static final String PREFIX = "blobtile-";
+
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+
+	/**
+	 * The bounds and mass of each component, and the x of its first pixel, which
+	 * lies on the row yMin.
+	 */
+	private int[] xMin;
+	private int[] xMax;
+	private int[] yMin;
+	private int[] yMax;
+	private int[] mass;
+	private int[] firstX;
+
+	/**
+	 * The sums of x, y, x*x, y*y and x*y over the pixels of each component.
+	 */
+	private long[] sumX;
+	private long[] sumY;
+	private long[] sumXX;
+	private long[] sumYY;
+	private long[] sumXY;
+
+	/**
+	 * Default constructor, for reading the sidecar.
+	 */
+	public BlobTile() {
+	}
+
+	/**
+	 * @param core the part of the whole image the tile covers
+	 */
+	public BlobTile(Rectangle core) {
+		x = core.x;
+		y = core.y;
+		width = core.width;
+		height = core.height;
+		setComponentCount(0);
+	}
+
+	/**
+	 * @param param a parameter from a file name
+	 * @return true if the parameter describes a tile
+	 */
+	public static boolean isParam(String param) {
+		return param.startsWith(PREFIX);
+	}
+
+	/**
+	 * Reads a tile, without its components, from a parameter of a file name.
+	 *
+	 * @param param the parameter, as made by toParam
+	 * @return the tile
+	 * @throws IllegalArgumentException if the parameter does not describe a tile
+	 */
+	public static BlobTile fromParam(String param) throws IllegalArgumentException {
+		String[] values = isParam(param) ? param.substring(PREFIX.length()).split("-") : new String[0];
+		if (values.length != 4) {
+			throw new IllegalArgumentException("Not a tile: " + param);
+		}
+		return new BlobTile(new Rectangle(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+				Integer.parseInt(values[2]), Integer.parseInt(values[3])));
+	}
+
+	/**
+	 * @return the parameter describing the tile in a file name
+	 */
+	public String toParam() {
+		return PREFIX + x + "-" + y + "-" + width + "-" + height;
+	}
+
+	/**
+	 * @return the part of the whole image the tile covers
+	 */
+	public Rectangle getCore() {
+		return new Rectangle(x, y, width, height);
+	}
+
+	/**
+	 * @return the number of components found in the tile
+	 */
+	public int getComponentCount() {
+		return mass.length;
+	}
+
+	/**
+	 * Makes room for a number of components, dropping any already set.
+	 *
+	 * @param count the number of components
+	 */
+	void setComponentCount(int count) {
+		xMin = new int[count];
+		xMax = new int[count];
+		yMin = new int[count];
+		yMax = new int[count];
+		mass = new int[count];
+		firstX = new int[count];
+		sumX = new long[count];
+		sumY = new long[count];
+		sumXX = new long[count];
+		sumYY = new long[count];
+		sumXY = new long[count];
+	}
+
+	/**
+	 * Sets the bounds, mass and first pixel of a component, in the coordinates
+	 * of the whole image.
+	 *
+	 * @param component the component, numbered from 0
+	 * @param firstX the x of the first pixel, which lies on the row yMin
+	 */
+	void setComponent(int component, int xMin, int xMax, int yMin, int yMax, int mass, int firstX) {
+		this.xMin[component] = xMin;
+		this.xMax[component] = xMax;
+		this.yMin[component] = yMin;
+		this.yMax[component] = yMax;
+		this.mass[component] = mass;
+		this.firstX[component] = firstX;
+	}
+
+	/**
+	 * Sets the moments of a component, in the coordinates of the whole image.
+	 *
+	 * @param component the component, numbered from 0
+	 */
+	void setMoments(int component, long sumX, long sumY, long sumXX, long sumYY, long sumXY) {
+		this.sumX[component] = sumX;
+		this.sumY[component] = sumY;
+		this.sumXX[component] = sumXX;
+		this.sumYY[component] = sumYY;
+		this.sumXY[component] = sumXY;
+	}
+
+	int getXMin(int component) {
+		return xMin[component];
+	}
+
+	int getXMax(int component) {
+		return xMax[component];
+	}
+
+	int getYMin(int component) {
+		return yMin[component];
+	}
+
+	int getYMax(int component) {
+		return yMax[component];
+	}
+
+	int getMass(int component) {
+		return mass[component];
+	}
+
+	int getFirstX(int component) {
+		return firstX[component];
+	}
+
+	long getSumX(int component) {
+		return sumX[component];
+	}
+
+	long getSumY(int component) {
+		return sumY[component];
+	}
+
+	long getSumXX(int component) {
+		return sumXX[component];
+	}
+
+	long getSumYY(int component) {
+		return sumYY[component];
+	}
+
+	long getSumXY(int component) {
+		return sumXY[component];
+	}
+}
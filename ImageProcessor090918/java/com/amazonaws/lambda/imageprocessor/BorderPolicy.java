@@ -0,0 +1,63 @@
+package com.amazonaws.lambda.imageprocessor;
+
+/**
+ * The ways a filter mask can treat the part of it that falls outside of the
+ * image. PaddedRaster uses the policy to build a copy of the image with a halo
+ * around it, so that filters need no bounds checks while they run.
+ *
+ * @author ryanorr
+ *
+ */
+public enum BorderPolicy {
+
+	/**
+	 * Only the pixels inside the image are part of the mask, so the mask shrinks
+	 * at the edges. Used by MedianFilter.
+	 */
+	SHRINK,
+
+	/**
+	 * Pixels outside the image are read as zero. Used by MedianFilterZeroFill.
+	 */
+	ZERO,
+
+	/**
+	 * Pixels outside the image take the value of the nearest pixel on the edge of
+	 * the image. Used by MedianFilterValueFill.
+	 */
+	REPLICATE,
+
+	/**
+	 * Pixels outside the image are mirrored about the edge pixel, which is not
+	 * repeated, so that -1 reads 1 and -2 reads 2.
+	 */
+	REFLECT;
+
+	/**
+	 * Maps a row or column index that may be outside the image onto the index
+	 * inside the image that it reads.
+	 *
+	 * @param i the index, possibly negative or past the end
+	 * @param n the number of rows or columns in the image
+	 * @return the index to read, or -1 if the pixel is outside the image and has
+	 *         no value under this policy
+	 */
+	public int sourceIndex(int i, int n) {
+		if (i >= 0 && i < n) {
+			return i;
+		}
+		switch (this) {
+		case REPLICATE:
+			return i < 0 ? 0 : n - 1;
+		case REFLECT:
+			if (n == 1) {
+				return 0;
+			}
+			int period = 2 * n - 2;
+			i = Math.abs(i) % period;
+			return i < n ? i : period - i;
+		default:
+			return -1;
+		}
+	}
+}
@@ -1,7 +1,10 @@
 package com.amazonaws.lambda.imageprocessor;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * <p><em>This software has been released into the public domain.
@@ -11,7 +14,9 @@ import java.util.Arrays;
  * <p>This class provides a configurable implementation of the Canny edge
  * detection algorithm. This classic algorithm has a number of shortcomings,
  * but remains an effective tool in many scenarios. <em>This class is designed
- * for single threaded use only.</em></p>
+ * for single threaded use only.</em> A detector may however be configured to
+ * spread the smoothing, gradient and non-maximal suppression stages of a
+ * single call to process over several threads; see setParallelism.</p>
  * 
  * <p>Sample usage:</p>
  * 
@@ -39,10 +44,117 @@ public class CannyEdgeDetector {
 	// statics
 	
 	private final static float GAUSSIAN_CUT_OFF = 0.005f;
-	private final static float MAGNITUDE_SCALE = 100F;
+	final static float MAGNITUDE_SCALE = 100F;
 	private final static float MAGNITUDE_LIMIT = 1000F;
 	private final static int MAGNITUDE_MAX = (int) (MAGNITUDE_SCALE * MAGNITUDE_LIMIT);
+	private final static int MIN_BAND_ROWS = 16;
+	private final static int EDGE = -1;
+	private final static float ALPHA = 0.96043387f;
+	private final static float BETA = 0.39782473f;
+	private final static float MIN_RECURSIVE_RADIUS = 0.5f;
+	
+	/**
+	 * The grey level of an edge in the image of a tile.
+	 */
+	
+	public final static int TILE_EDGE = 255;
+	
+	/**
+	 * The grey level in the image of a tile of a pixel at or above the low
+	 * threshold that is not joined to the high threshold inside the tile.
+	 */
+	
+	public final static int TILE_CANDIDATE = 128;
 
+	// types
+	
+	/**
+	 * The ways the magnitude of the gradient at a pixel can be computed from
+	 * its partial derivatives.
+	 */
+	
+	public enum GradientMagnitude {
+		/**
+		 * The exact Euclidean length, sqrt(x * x + y * y).
+		 */
+		EXACT,
+		
+		/**
+		 * The sum |x| + |y|, which overestimates diagonal gradients by up to
+		 * a factor of sqrt(2).
+		 */
+		MANHATTAN,
+		
+		/**
+		 * The alpha max plus beta min approximation, within 4% of the exact
+		 * length in every direction.
+		 */
+		APPROXIMATE;
+		
+		/**
+		 * @return the magnitude of the gradient with partial derivatives x and y
+		 */
+		
+		float of(float x, float y) {
+			switch (this) {
+			case MANHATTAN:
+				return Math.abs(x) + Math.abs(y);
+			case APPROXIMATE: {
+				float ax = Math.abs(x);
+				float ay = Math.abs(y);
+				return ax > ay ? ALPHA * ax + BETA * ay : ALPHA * ay + BETA * ax;
+			}
+			default:
+				return (float) Math.hypot(x, y);
+			}
+		}
+		
+		/**
+		 * Returns the magnitude named by a key parameter, ignoring case.
+		 * 
+		 * @param param the parameter from the file name, eg. "manhattan"
+		 * @return the gradient magnitude
+		 * @throws IllegalArgumentException if no magnitude has that name
+		 */
+		
+		public static GradientMagnitude fromParam(String param) throws IllegalArgumentException {
+			return valueOf(param.toUpperCase());
+		}
+	}
+	
+	/**
+	 * The ways the luminance can be smoothed and differentiated before the
+	 * gradient magnitudes are compared.
+	 */
+	
+	public enum Smoothing {
+		/**
+		 * Convolution with a Gaussian kernel and its derivative, truncated at
+		 * the Gaussian kernel width. The cost per pixel grows with the width.
+		 */
+		CONVOLUTION,
+		
+		/**
+		 * The recursive Gaussian filter of Young and van Vliet, run forwards
+		 * and backwards along each row and then each column, followed by
+		 * central differences. The cost per pixel does not depend on the
+		 * kernel radius or width.
+		 */
+		RECURSIVE;
+		
+		/**
+		 * Returns the smoothing named by a key parameter, ignoring case.
+		 * 
+		 * @param param the parameter from the file name, eg. "recursive"
+		 * @return the smoothing
+		 * @throws IllegalArgumentException if no smoothing has that name
+		 */
+		
+		public static Smoothing fromParam(String param) throws IllegalArgumentException {
+			return valueOf(param.toUpperCase());
+		}
+	}
+	
 	// fields
 	
 	private int height;
@@ -50,20 +162,36 @@ public class CannyEdgeDetector {
 	private int picsize;
 	private int[] data;
 	private int[] magnitude;
+	private int[] stack;
+	private int[] parent;
 	private BufferedImage sourceImage;
 	private BufferedImage edgesImage;
+	private BinaryPlane edgesPlane;
 	
 	private float gaussianKernelRadius;
 	private float lowThreshold;
 	private float highThreshold;
 	private int gaussianKernelWidth;
 	private boolean contrastNormalized;
+	private int parallelism;
+	private GradientMagnitude gradientMagnitude;
+	private Smoothing smoothing;
+	private ForkJoinPool pool;
 
 	private float[] xConv;
 	private float[] yConv;
 	private float[] xGradient;
 	private float[] yGradient;
 	
+	private float[] kernel;
+	private float[] diffKernel;
+	private int kwidth;
+	
+	private float recursiveGain;
+	private float recursive1;
+	private float recursive2;
+	private float recursive3;
+	
 	// constructors
 	
 	/**
@@ -76,6 +204,9 @@ public class CannyEdgeDetector {
 		gaussianKernelRadius = 2f;
 		gaussianKernelWidth = 16;
 		contrastNormalized = false;
+		parallelism = 1;
+		gradientMagnitude = GradientMagnitude.EXACT;
+		smoothing = Smoothing.CONVOLUTION;
 	}
 
 	// accessors
@@ -105,9 +236,9 @@ public class CannyEdgeDetector {
 
 	/**
 	 * Obtains an image containing the edges detected during the last call to
-	 * the process method. The buffered image is an opaque image of type
-	 * BufferedImage.TYPE_INT_ARGB in which edge pixels are white and all other
-	 * pixels are black.
+	 * the process method. Unless an image was set with setEdgesImage, the
+	 * buffered image is of type BufferedImage.TYPE_BYTE_BINARY, one bit per
+	 * pixel, in which edge pixels are white and all other pixels are black.
 	 * 
 	 * @return an image containing the detected edges, or null if the process
 	 * method has not yet been called.
@@ -129,6 +260,18 @@ public class CannyEdgeDetector {
 		this.edgesImage = edgesImage;
 	}
 
+	/**
+	 * Obtains the edges detected during the last call to the process method as
+	 * a plane in which edge pixels are set, for passing on to other detectors
+	 * without going through an image.
+	 * 
+	 * @return the edges, or null if the process method has not yet been called
+	 */
+	
+	public BinaryPlane getEdgesPlane() {
+		return edgesPlane;
+	}
+
 	/**
 	 * The low threshold for hysteresis. The default value is 2.5.
 	 * 
@@ -246,25 +389,215 @@ public class CannyEdgeDetector {
 		this.contrastNormalized = contrastNormalized;
 	}
 	
+	/**
+	 * The number of threads used for the smoothing, gradient and non-maximal
+	 * suppression stages. The default value is 1.
+	 * 
+	 * @return the parallelism level
+	 */
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	/**
+	 * Sets the number of threads used for the smoothing, gradient and
+	 * non-maximal suppression stages. Each stage is split into bands of rows
+	 * that run on a ForkJoinPool, and every band finishes before the next stage
+	 * reads the rows around it, so the edges are exactly those found by a
+	 * single thread. Hysteresis always runs on the calling thread over the
+	 * whole magnitude map, labelling each band separately and joining the
+	 * labels across the band edges.
+	 * 
+	 * @param parallelism the number of threads, at least 1. A value of 1 runs
+	 * every stage on the calling thread.
+	 */
+	
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException();
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * How the magnitude of the gradient is computed. The default value is
+	 * GradientMagnitude.EXACT.
+	 * 
+	 * @return the gradient magnitude in use
+	 */
+	
+	public GradientMagnitude getGradientMagnitude() {
+		return gradientMagnitude;
+	}
+	
+	/**
+	 * Sets how the magnitude of the gradient is computed. The approximations
+	 * avoid a square root per pixel but give somewhat larger magnitudes, so
+	 * the thresholds may need raising to keep the same edges.
+	 * 
+	 * @param gradientMagnitude the gradient magnitude to use, not null
+	 */
+	
+	public void setGradientMagnitude(GradientMagnitude gradientMagnitude) {
+		if (gradientMagnitude == null) throw new IllegalArgumentException();
+		this.gradientMagnitude = gradientMagnitude;
+	}
+	
+	/**
+	 * How the luminance is smoothed and differentiated. The default value is
+	 * Smoothing.CONVOLUTION.
+	 * 
+	 * @return the smoothing in use
+	 */
+	
+	public Smoothing getSmoothing() {
+		return smoothing;
+	}
+	
+	/**
+	 * Sets how the luminance is smoothed and differentiated.
+	 * Smoothing.RECURSIVE costs the same for any kernel radius, so it pays
+	 * off for large radii. It approximates the convolution: for radii from 2
+	 * to 4, measured against the largest gradient magnitude in the image, the
+	 * magnitudes differ by less than 4% RMS and by less than 15% at any pixel,
+	 * the worst case being pixel noise. The error grows for smaller radii, to
+	 * about 9% RMS at a radius of 1, so a few edges of fine texture may move
+	 * or change. Radii below 0.5 are outside the range of the recursive filter
+	 * and always use the convolution. The bound holds away from the border,
+	 * where the convolution reads luminance it has not smoothed; edges are
+	 * only ever found as far from the border as the convolution finds them.
+	 * 
+	 * @param smoothing the smoothing to use, not null
+	 */
+	
+	public void setSmoothing(Smoothing smoothing) {
+		if (smoothing == null) throw new IllegalArgumentException();
+		this.smoothing = smoothing;
+	}
+	
 	// methods
 	
 	public void process() {
+		BufferedImage[] images = { edgesImage };
+		detectEdges(new float[] { lowThreshold }, new float[] { highThreshold }, images);
+		edgesImage = images[0];
+	}
+	
+	/**
+	 * Detects edges in the source image once for each of several pairs of
+	 * hysteresis thresholds. Only hysteresis depends on the thresholds, so the
+	 * smoothing and gradients are computed once and shared by every pair. The
+	 * thresholds set on the detector are not used, and afterwards the edges
+	 * image holds the edges for the last pair.
+	 * 
+	 * @param lowThresholds the low hysteresis threshold of each pair
+	 * @param highThresholds the high hysteresis threshold of each pair, as
+	 * many as there are low thresholds
+	 * @return an image of the edges for each pair, in the same order and of
+	 * the same form as getEdgesImage
+	 */
+	
+	public BufferedImage[] process(float[] lowThresholds, float[] highThresholds) {
+		if (lowThresholds.length == 0 || lowThresholds.length != highThresholds.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < lowThresholds.length; i++) {
+			if (lowThresholds[i] < 0 || highThresholds[i] < 0) throw new IllegalArgumentException();
+		}
+		BufferedImage[] images = new BufferedImage[lowThresholds.length];
+		detectEdges(lowThresholds, highThresholds, images);
+		edgesImage = images[images.length - 1];
+		return images;
+	}
+ 
+	/**
+	 * Detects edges in a tile of a larger image, for joining to the edges of
+	 * the other tiles. The source image holds the tile and a halo of the pixels
+	 * around it, wide enough that the gradients inside the tile are those of
+	 * the larger image. Hysteresis is only run inside the tile, so an edge that
+	 * crosses into another tile may only reach the high threshold there. The
+	 * pixels that could still become edges are left as candidates, and
+	 * following the edges through them across the whole image gives the edges
+	 * of the larger image. Edges are only found with the thresholds set on the
+	 * detector.
+	 * 
+	 * @param core the part of the source image inside the halo
+	 * @return a TYPE_BYTE_GRAY image the size of the core, in which edges are
+	 * TILE_EDGE, candidates are TILE_CANDIDATE and all other pixels are 0
+	 */
+	
+	public BufferedImage processTile(Rectangle core) {
 		width = sourceImage.getWidth();
 		height = sourceImage.getHeight();
 		picsize = width * height;
+		if (!new Rectangle(width, height).contains(core)) throw new IllegalArgumentException();
 		initArrays();
 		readLuminance();
 		if (contrastNormalized) normalizeContrast();
-		computeGradients(gaussianKernelRadius, gaussianKernelWidth);
+		if (parallelism > 1) pool = new ForkJoinPool(parallelism);
+		try {
+			computeGradients(gaussianKernelRadius, gaussianKernelWidth);
+		} finally {
+			if (pool != null) pool.shutdown();
+			pool = null;
+		}
+		//the halo takes no part in hysteresis
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			if (y < core.y || y >= core.y + core.height) {
+				Arrays.fill(magnitude, offset, offset + width, 0);
+			} else {
+				Arrays.fill(magnitude, offset, offset + core.x, 0);
+				Arrays.fill(magnitude, offset + core.x + core.width, offset + width, 0);
+			}
+		}
 		int low = Math.round(lowThreshold * MAGNITUDE_SCALE);
-		int high = Math.round( highThreshold * MAGNITUDE_SCALE);
+		int high = Math.round(highThreshold * MAGNITUDE_SCALE);
 		performHysteresis(low, high);
-		thresholdEdges();
-		writeEdges(data);
+		
+		BufferedImage tile = new BufferedImage(core.width, core.height, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] row = new byte[core.width];
+		for (int y = 0; y < core.height; y++) {
+			int offset = (core.y + y) * width + core.x;
+			for (int x = 0; x < core.width; x++) {
+				int i = offset + x;
+				row[x] = (byte) (data[i] == EDGE ? TILE_EDGE : magnitude[i] >= low ? TILE_CANDIDATE : 0);
+			}
+			tile.getRaster().setDataElements(0, y, core.width, 1, row);
+		}
+		return tile;
 	}
  
 	// private utility methods
 	
+	//writes the edges for each pair of thresholds into the matching image,
+	//creating any image that is null
+	private void detectEdges(float[] lowThresholds, float[] highThresholds, BufferedImage[] images) {
+		width = sourceImage.getWidth();
+		height = sourceImage.getHeight();
+		picsize = width * height;
+		initArrays();
+		readLuminance();
+		if (contrastNormalized) normalizeContrast();
+		if (parallelism > 1) pool = new ForkJoinPool(parallelism);
+		try {
+			computeGradients(gaussianKernelRadius, gaussianKernelWidth);
+			for (int i = 0; i < images.length; i++) {
+				int low = Math.round(lowThresholds[i] * MAGNITUDE_SCALE);
+				int high = Math.round( highThresholds[i] * MAGNITUDE_SCALE);
+				if (pool == null) {
+					performHysteresis(low, high);
+				} else {
+					performBandedHysteresis(low, high);
+				}
+				edgesPlane = thresholdEdges();
+				images[i] = writeEdges(edgesPlane, images[i]);
+			}
+		} finally {
+			if (pool != null) pool.shutdown();
+			pool = null;
+		}
+	}
+	
 	private void initArrays() {
 		if (data == null || picsize != data.length) {
 			data = new int[picsize];
@@ -291,8 +624,35 @@ public class CannyEdgeDetector {
 	private void computeGradients(float kernelRadius, int kernelWidth) {
 		
 		//generate the gaussian convolution masks
-		float kernel[] = new float[kernelWidth];
-		float diffKernel[] = new float[kernelWidth];
+		kernel = new float[kernelWidth];
+		diffKernel = new float[kernelWidth];
+		kwidth = createKernels(kernelRadius, kernelWidth, kernel, diffKernel);
+
+		//each stage reads the rows around a band, so all bands of a stage
+		//finish before the next stage starts
+		if (smoothing == Smoothing.RECURSIVE && kernelRadius >= MIN_RECURSIVE_RADIUS) {
+			computeRecursiveCoefficients(kernelRadius);
+			runBands(0, height, this::smoothRows);
+			//columns are smoothed independently, so these bands are of columns
+			runBands(0, width, this::smoothColumns);
+			runBands(kwidth - 1, height - (kwidth - 1), this::differentiate);
+		} else {
+			runBands(kwidth - 1, height - (kwidth - 1), this::convolve);
+			runBands(kwidth - 1, height - (kwidth - 1), this::computeXGradients);
+			runBands(kwidth - 1, height - (kwidth - 1), this::computeYGradients);
+		}
+		runBands(kwidth, height - kwidth, this::suppressNonMaxima);
+	}
+	
+	/**
+	 * Fills in one half of the Gaussian kernel and of its derivative, stopping
+	 * where the Gaussian becomes negligible.
+	 * 
+	 * @return the number of entries filled in, at least 2 and at most the
+	 * length of the arrays
+	 */
+	
+	static int createKernels(float kernelRadius, int kernelWidth, float[] kernel, float[] diffKernel) {
 		int kwidth;
 		for (kwidth = 0; kwidth < kernelWidth; kwidth++) {
 			float g1 = gaussian(kwidth, kernelRadius);
@@ -302,15 +662,60 @@ public class CannyEdgeDetector {
 			kernel[kwidth] = (g1 + g2 + g3) / 3f / (2f * (float) Math.PI * kernelRadius * kernelRadius);
 			diffKernel[kwidth] = g3 - g2;
 		}
-
+		return kwidth;
+	}
+	
+	/**
+	 * A stage of computeGradients applied to a band of rows.
+	 */
+	
+	private interface BandOperation {
+		void apply(int firstRow, int lastRow);
+	}
+	
+	/**
+	 * Applies an operation to the rows from first up to but excluding last,
+	 * split into bands across the pool when one is in use. Returns once every
+	 * band is complete.
+	 */
+	
+	private void runBands(int first, int last, BandOperation operation) {
+		int rows = last - first;
+		if (rows <= 0) return;
+		int bands = bandCount(rows);
+		if (bands <= 1) {
+			operation.apply(first, last);
+			return;
+		}
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[bands];
+		for (int band = 0; band < bands; band++) {
+			int firstRow = first + rows * band / bands;
+			int lastRow = first + rows * (band + 1) / bands;
+			tasks[band] = pool.submit(() -> operation.apply(firstRow, lastRow));
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+	}
+	
+	private int bandCount(int rows) {
+		return pool == null ? 1 : Math.min(parallelism, rows / MIN_BAND_ROWS);
+	}
+	
+	//NOTE: Every stage walks the image row by row so that the inner loop
+	//reads and writes memory in order. Each pixel is still computed from the
+	//same values in the same order, so the results do not depend on the order
+	//of the loops.
+	
+	//perform convolution in x and y directions
+	private void convolve(int firstRow, int lastRow) {
 		int initX = kwidth - 1;
 		int maxX = width - (kwidth - 1);
-		int initY = width * (kwidth - 1);
-		int maxY = width * (height - (kwidth - 1));
+		int initY = width * firstRow;
+		int maxY = width * lastRow;
 		
-		//perform convolution in x and y directions
-		for (int x = initX; x < maxX; x++) {
-			for (int y = initY; y < maxY; y += width) {
+		for (int y = initY; y < maxY; y += width) {
+			for (int x = initX; x < maxX; x++) {
 				int index = x + y;
 				float sumX = data[index] * kernel[0];
 				float sumY = sumX;
@@ -328,9 +733,16 @@ public class CannyEdgeDetector {
 			}
  
 		}
- 
-		for (int x = initX; x < maxX; x++) {
-			for (int y = initY; y < maxY; y += width) {
+	}
+	
+	private void computeXGradients(int firstRow, int lastRow) {
+		int initX = kwidth - 1;
+		int maxX = width - (kwidth - 1);
+		int initY = width * firstRow;
+		int maxY = width * lastRow;
+		
+		for (int y = initY; y < maxY; y += width) {
+			for (int x = initX; x < maxX; x++) {
 				float sum = 0f;
 				int index = x + y;
 				for (int i = 1; i < kwidth; i++)
@@ -340,9 +752,18 @@ public class CannyEdgeDetector {
 			}
  
 		}
-
-		for (int x = kwidth; x < width - kwidth; x++) {
-			for (int y = initY; y < maxY; y += width) {
+	}
+	
+	//NOTE: yConv is not read again once the x gradients are computed, so it
+	//is reused to hold the gradient magnitude of each pixel. The magnitudes
+	//are found once here rather than nine times over during suppression.
+	private void computeYGradients(int firstRow, int lastRow) {
+		int initY = width * firstRow;
+		int maxY = width * lastRow;
+		float[] gradMagnitude = yConv;
+		
+		for (int y = initY; y < maxY; y += width) {
+			for (int x = kwidth; x < width - kwidth; x++) {
 				float sum = 0.0f;
 				int index = x + y;
 				int yOffset = width;
@@ -353,15 +774,135 @@ public class CannyEdgeDetector {
  
 				yGradient[index] = sum;
 			}
- 
+			
+			//suppression also reads the magnitudes one pixel beyond its edges
+			for (int x = kwidth - 1; x < width - (kwidth - 1); x++) {
+				int index = x + y;
+				gradMagnitude[index] = hypot(xGradient[index], yGradient[index]);
+			}
 		}
- 
-		initX = kwidth;
-		maxX = width - kwidth;
-		initY = width * kwidth;
-		maxY = width * (height - kwidth);
-		for (int x = initX; x < maxX; x++) {
-			for (int y = initY; y < maxY; y += width) {
+	}
+	
+	//NOTE: The recursive filter follows I.T. Young and L.J. van Vliet,
+	//"Recursive implementation of the Gaussian filter", Signal Processing 44
+	//(1995). A third order filter run forwards and then backwards over a line
+	//approximates convolution with a normalized Gaussian. The filter starts
+	//from the value at the end of the line, as though the line carried on
+	//with that value.
+	private void computeRecursiveCoefficients(float sigma) {
+		double q = sigma >= 2.5
+				? 0.98711 * sigma - 0.96330
+				: 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+		double q2 = q * q;
+		double q3 = q2 * q;
+		double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		double b2 = -(1.4281 * q2 + 1.26661 * q3);
+		double b3 = 0.422205 * q3;
+		recursiveGain = (float) (1 - (b1 + b2 + b3) / b0);
+		recursive1 = (float) (b1 / b0);
+		recursive2 = (float) (b2 / b0);
+		recursive3 = (float) (b3 / b0);
+	}
+	
+	//smooths the luminance along each row into yConv
+	private void smoothRows(int firstRow, int lastRow) {
+		float b = recursiveGain;
+		float a1 = recursive1;
+		float a2 = recursive2;
+		float a3 = recursive3;
+		for (int y = firstRow; y < lastRow; y++) {
+			int offset = y * width;
+			float w1 = data[offset];
+			float w2 = w1;
+			float w3 = w1;
+			for (int x = 0; x < width; x++) {
+				float w = b * data[offset + x] + a1 * w1 + a2 * w2 + a3 * w3;
+				yConv[offset + x] = w;
+				w3 = w2;
+				w2 = w1;
+				w1 = w;
+			}
+			w1 = yConv[offset + width - 1];
+			w2 = w1;
+			w3 = w1;
+			for (int x = width - 1; x >= 0; x--) {
+				float w = b * yConv[offset + x] + a1 * w1 + a2 * w2 + a3 * w3;
+				yConv[offset + x] = w;
+				w3 = w2;
+				w2 = w1;
+				w1 = w;
+			}
+		}
+	}
+	
+	//smooths yConv along each column into xConv, a whole row at a time so
+	//that memory is read in order
+	private void smoothColumns(int firstColumn, int lastColumn) {
+		float b = recursiveGain;
+		float a1 = recursive1;
+		float a2 = recursive2;
+		float a3 = recursive3;
+		
+		//rows before the first read the first row of the input
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			float[] src1 = y >= 1 ? xConv : yConv;
+			float[] src2 = y >= 2 ? xConv : yConv;
+			float[] src3 = y >= 3 ? xConv : yConv;
+			int offset1 = y >= 1 ? offset - width : 0;
+			int offset2 = y >= 2 ? offset - 2 * width : 0;
+			int offset3 = y >= 3 ? offset - 3 * width : 0;
+			for (int x = firstColumn; x < lastColumn; x++) {
+				xConv[offset + x] = b * yConv[offset + x]
+						+ a1 * src1[offset1 + x] + a2 * src2[offset2 + x] + a3 * src3[offset3 + x];
+			}
+		}
+		
+		//rows after the last read the last row of the forward pass, copied for
+		//this band's columns only as other bands are still writing theirs
+		int lastOffset = (height - 1) * width;
+		float[] last = Arrays.copyOfRange(xConv, lastOffset + firstColumn, lastOffset + lastColumn);
+		for (int y = height - 1; y >= 0; y--) {
+			int offset = y * width;
+			float[] src1 = y + 1 < height ? xConv : last;
+			float[] src2 = y + 2 < height ? xConv : last;
+			float[] src3 = y + 3 < height ? xConv : last;
+			int offset1 = y + 1 < height ? offset + width : -firstColumn;
+			int offset2 = y + 2 < height ? offset + 2 * width : -firstColumn;
+			int offset3 = y + 3 < height ? offset + 3 * width : -firstColumn;
+			for (int x = firstColumn; x < lastColumn; x++) {
+				xConv[offset + x] = b * xConv[offset + x]
+						+ a1 * src1[offset1 + x] + a2 * src2[offset2 + x] + a3 * src3[offset3 + x];
+			}
+		}
+	}
+	
+	//central differences of the smoothed luminance in xConv, with the
+	//magnitudes in yConv as computeYGradients leaves them
+	private void differentiate(int firstRow, int lastRow) {
+		float[] gradMagnitude = yConv;
+		for (int y = firstRow; y < lastRow; y++) {
+			int offset = y * width;
+			for (int x = kwidth - 1; x < width - (kwidth - 1); x++) {
+				int index = offset + x;
+				float xGrad = 0.5f * (xConv[index + 1] - xConv[index - 1]);
+				float yGrad = 0.5f * (xConv[index + width] - xConv[index - width]);
+				xGradient[index] = xGrad;
+				yGradient[index] = yGrad;
+				gradMagnitude[index] = hypot(xGrad, yGrad);
+			}
+		}
+	}
+	
+	private void suppressNonMaxima(int firstRow, int lastRow) {
+		int initX = kwidth;
+		int maxX = width - kwidth;
+		int initY = width * firstRow;
+		int maxY = width * lastRow;
+		float[] gradMagnitude = yConv;
+		for (int y = initY; y < maxY; y += width) {
+			for (int x = initX; x < maxX; x++) {
 				int index = x + y;
 				int indexN = index - width;
 				int indexS = index + width;
@@ -374,59 +915,19 @@ public class CannyEdgeDetector {
 				
 				float xGrad = xGradient[index];
 				float yGrad = yGradient[index];
-				float gradMag = hypot(xGrad, yGrad);
+				float gradMag = gradMagnitude[index];
 
 				//perform non-maximal supression
-				float nMag = hypot(xGradient[indexN], yGradient[indexN]);
-				float sMag = hypot(xGradient[indexS], yGradient[indexS]);
-				float wMag = hypot(xGradient[indexW], yGradient[indexW]);
-				float eMag = hypot(xGradient[indexE], yGradient[indexE]);
-				float neMag = hypot(xGradient[indexNE], yGradient[indexNE]);
-				float seMag = hypot(xGradient[indexSE], yGradient[indexSE]);
-				float swMag = hypot(xGradient[indexSW], yGradient[indexSW]);
-				float nwMag = hypot(xGradient[indexNW], yGradient[indexNW]);
-				float tmp;
-				/*
-				 * An explanation of what's happening here, for those who want
-				 * to understand the source: This performs the "non-maximal
-				 * supression" phase of the Canny edge detection in which we
-				 * need to compare the gradient magnitude to that in the
-				 * direction of the gradient; only if the value is a local
-				 * maximum do we consider the point as an edge candidate.
-				 * 
-				 * We need to break the comparison into a number of different
-				 * cases depending on the gradient direction so that the
-				 * appropriate values can be used. To avoid computing the
-				 * gradient direction, we use two simple comparisons: first we
-				 * check that the partial derivatives have the same sign (1)
-				 * and then we check which is larger (2). As a consequence, we
-				 * have reduced the problem to one of four identical cases that
-				 * each test the central gradient magnitude against the values at
-				 * two points with 'identical support'; what this means is that
-				 * the geometry required to accurately interpolate the magnitude
-				 * of gradient function at those points has an identical
-				 * geometry (upto right-angled-rotation/reflection).
-				 * 
-				 * When comparing the central gradient to the two interpolated
-				 * values, we avoid performing any divisions by multiplying both
-				 * sides of each inequality by the greater of the two partial
-				 * derivatives. The common comparand is stored in a temporary
-				 * variable (3) and reused in the mirror case (4).
-				 * 
-				 */
-				if (xGrad * yGrad <= (float) 0 /*(1)*/
-					? Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
-						? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad) * eMag) /*(3)*/
-							&& tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag) /*(4)*/
-						: (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad) * nMag) /*(3)*/
-							&& tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag) /*(4)*/
-					: Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
-						? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad) * eMag) /*(3)*/
-							&& tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag) /*(4)*/
-						: (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad) * sMag) /*(3)*/
-							&& tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag) /*(4)*/
-					) {
-					magnitude[index] = gradMag >= MAGNITUDE_LIMIT ? MAGNITUDE_MAX : (int) (MAGNITUDE_SCALE * gradMag);
+				float nMag = gradMagnitude[indexN];
+				float sMag = gradMagnitude[indexS];
+				float wMag = gradMagnitude[indexW];
+				float eMag = gradMagnitude[indexE];
+				float neMag = gradMagnitude[indexNE];
+				float seMag = gradMagnitude[indexSE];
+				float swMag = gradMagnitude[indexSW];
+				float nwMag = gradMagnitude[indexNW];
+				if (isMaximum(xGrad, yGrad, gradMag, nMag, sMag, wMag, eMag, neMag, seMag, swMag, nwMag)) {
+					magnitude[index] = scaleMagnitude(gradMag);
 					//NOTE: The orientation of the edge is not employed by this
 					//implementation. It is a simple matter to compute it at
 					//this point as: Math.atan2(yGrad, xGrad);
@@ -437,14 +938,74 @@ public class CannyEdgeDetector {
 		}
 	}
  
+	/**
+	 * Whether a gradient magnitude is a maximum along its gradient, compared
+	 * with the magnitudes interpolated between its eight neighbours.
+	 */
+	
+	static boolean isMaximum(float xGrad, float yGrad, float gradMag,
+			float nMag, float sMag, float wMag, float eMag,
+			float neMag, float seMag, float swMag, float nwMag) {
+		float tmp;
+		/*
+		 * An explanation of what's happening here, for those who want
+		 * to understand the source: This performs the "non-maximal
+		 * supression" phase of the Canny edge detection in which we
+		 * need to compare the gradient magnitude to that in the
+		 * direction of the gradient; only if the value is a local
+		 * maximum do we consider the point as an edge candidate.
+		 * 
+		 * We need to break the comparison into a number of different
+		 * cases depending on the gradient direction so that the
+		 * appropriate values can be used. To avoid computing the
+		 * gradient direction, we use two simple comparisons: first we
+		 * check that the partial derivatives have the same sign (1)
+		 * and then we check which is larger (2). As a consequence, we
+		 * have reduced the problem to one of four identical cases that
+		 * each test the central gradient magnitude against the values at
+		 * two points with 'identical support'; what this means is that
+		 * the geometry required to accurately interpolate the magnitude
+		 * of gradient function at those points has an identical
+		 * geometry (upto right-angled-rotation/reflection).
+		 * 
+		 * When comparing the central gradient to the two interpolated
+		 * values, we avoid performing any divisions by multiplying both
+		 * sides of each inequality by the greater of the two partial
+		 * derivatives. The common comparand is stored in a temporary
+		 * variable (3) and reused in the mirror case (4).
+		 * 
+		 */
+		return xGrad * yGrad <= (float) 0 /*(1)*/
+			? Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
+				? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad) * eMag) /*(3)*/
+					&& tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag) /*(4)*/
+				: (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad) * nMag) /*(3)*/
+					&& tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag) /*(4)*/
+			: Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
+				? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad) * eMag) /*(3)*/
+					&& tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag) /*(4)*/
+				: (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad) * sMag) /*(3)*/
+					&& tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag) /*(4)*/;
+	}
+	
+	/**
+	 * @return a gradient magnitude scaled to the integer form compared with
+	 * the scaled thresholds
+	 */
+	
+	static int scaleMagnitude(float gradMag) {
+		return gradMag >= MAGNITUDE_LIMIT ? MAGNITUDE_MAX : (int) (MAGNITUDE_SCALE * gradMag);
+	}
+ 
 	//NOTE: It is quite feasible to replace the implementation of this method
 	//with one which only loosely approximates the hypot function. I've tested
 	//simple approximations such as Math.abs(x) + Math.abs(y) and they work fine.
+	//The approximation in use is chosen with setGradientMagnitude.
 	private float hypot(float x, float y) {
-		return (float) Math.hypot(x, y);
+		return gradientMagnitude.of(x, y);
 	}
  
-	private float gaussian(float x, float sigma) {
+	private static float gaussian(float x, float sigma) {
 		return (float) Math.exp(-(x * x) / (2f * sigma * sigma));
 	}
  
@@ -455,79 +1016,139 @@ public class CannyEdgeDetector {
 		//to separate these functions.
 		Arrays.fill(data, 0);
  
-		int offset = 0;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				if (data[offset] == 0 && magnitude[offset] >= high) {
-					follow(x, y, offset, low);
-				}
-				offset++;
+		for (int offset = 0; offset < picsize; offset++) {
+			if (data[offset] == 0 && magnitude[offset] >= high) {
+				follow(offset, low);
 			}
 		}
  	}
  
-	private void follow(int x1, int y1, int i1, int threshold) {
-		int x0 = x1 == 0 ? x1 : x1 - 1;
-		int x2 = x1 == width - 1 ? x1 : x1 + 1;
-		int y0 = y1 == 0 ? y1 : y1 - 1;
-		int y2 = y1 == height -1 ? y1 : y1 + 1;
-		
-		data[i1] = magnitude[i1];
-		for (int x = x0; x <= x2; x++) {
+	//NOTE: Edges are followed with an explicit stack rather than by recursion,
+	//which overflowed the thread stack on long edges in large images. Every
+	//pixel is marked when it is pushed, so the stack never holds more than
+	//picsize entries. The stack is kept for later calls.
+	private void follow(int i1, int threshold) {
+		if (stack == null) stack = new int[Math.min(picsize, 1024)];
+		int top = 0;
+		data[i1] = EDGE;
+		stack[top++] = i1;
+		while (top > 0) {
+			int i = stack[--top];
+			int x1 = i % width;
+			int y1 = i / width;
+			int x0 = x1 == 0 ? x1 : x1 - 1;
+			int x2 = x1 == width - 1 ? x1 : x1 + 1;
+			int y0 = y1 == 0 ? y1 : y1 - 1;
+			int y2 = y1 == height -1 ? y1 : y1 + 1;
+			
 			for (int y = y0; y <= y2; y++) {
-				int i2 = x + y * width;
-				if ((y != y1 || x != x1)
-					&& data[i2] == 0 
-					&& magnitude[i2] >= threshold) {
-					follow(x, y, i2, threshold);
-					return;
+				for (int x = x0; x <= x2; x++) {
+					int i2 = x + y * width;
+					if (data[i2] == 0 && magnitude[i2] >= threshold) {
+						data[i2] = EDGE;
+						if (top == stack.length) {
+							stack = Arrays.copyOf(stack, Math.min(picsize, 2 * top));
+						}
+						stack[top++] = i2;
+					}
 				}
 			}
 		}
 	}
-
-	private void thresholdEdges() {
+	
+	//NOTE: This gives the same edges as performHysteresis, but finds them as
+	//connected components with a union-find forest so that each band of rows
+	//can be labelled on its own thread. Every set is rooted at its first pixel
+	//in raster order, and a band only links pixels inside itself, so bands
+	//never touch the same entries of the forest. The bands are then joined
+	//along their edges and every set holding a strong pixel becomes an edge.
+	private void performBandedHysteresis(int low, int high) {
+		if (parent == null || parent.length != picsize) parent = new int[picsize];
+		//every pixel over the high threshold is an edge even when it is under
+		//the low threshold, so candidates are those over either threshold
+		int candidate = Math.min(low, high);
+		runBands(0, height, (firstRow, lastRow) -> labelBand(firstRow, lastRow, candidate));
+		
+		int bands = bandCount(height);
+		for (int band = 1; band < bands; band++) {
+			int seam = height * band / bands;
+			int offset = seam * width;
+			for (int x = 0; x < width; x++) {
+				int i = offset + x;
+				if (parent[i] < 0) continue;
+				int above = i - width;
+				for (int i2 = above - (x == 0 ? 0 : 1); i2 <= above + (x == width - 1 ? 0 : 1); i2++) {
+					if (parent[i2] >= 0) union(i, i2);
+				}
+			}
+		}
+		
+		//data marks the roots of strong sets, then every pixel in one
+		Arrays.fill(data, 0);
+		for (int i = 0; i < picsize; i++) {
+			if (magnitude[i] >= high && parent[i] >= 0) data[find(i)] = EDGE;
+		}
 		for (int i = 0; i < picsize; i++) {
-			data[i] = data[i] > 0 ? -1 : 0xff000000;
+			if (parent[i] >= 0) data[i] = data[find(i)];
 		}
 	}
 	
-	private int luminance(float r, float g, float b) {
-		return Math.round(0.299f * r + 0.587f * g + 0.114f * b);
+	private void labelBand(int firstRow, int lastRow, int threshold) {
+		for (int y = firstRow; y < lastRow; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				int i = offset + x;
+				if (magnitude[i] < threshold) {
+					parent[i] = -1;
+					continue;
+				}
+				parent[i] = i;
+				if (x > 0 && parent[i - 1] >= 0) union(i, i - 1);
+				if (y > firstRow) {
+					int above = i - width;
+					for (int i2 = above - (x == 0 ? 0 : 1); i2 <= above + (x == width - 1 ? 0 : 1); i2++) {
+						if (parent[i2] >= 0) union(i, i2);
+					}
+				}
+			}
+		}
 	}
 	
-	private void readLuminance() {
-		int type = sourceImage.getType();
-		if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
-			int[] pixels = (int[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-			for (int i = 0; i < picsize; i++) {
-				int p = pixels[i];
-				int r = (p & 0xff0000) >> 16;
-				int g = (p & 0xff00) >> 8;
-				int b = p & 0xff;
-				data[i] = luminance(r, g, b);
-			}
-		} else if (type == BufferedImage.TYPE_BYTE_GRAY) {
-			byte[] pixels = (byte[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-			for (int i = 0; i < picsize; i++) {
-				data[i] = (pixels[i] & 0xff);
-			}
-		} else if (type == BufferedImage.TYPE_USHORT_GRAY) {
-			short[] pixels = (short[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-			for (int i = 0; i < picsize; i++) {
-				data[i] = (pixels[i] & 0xffff) / 256;
+	private int find(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
+	private void union(int i1, int i2) {
+		int r1 = find(i1);
+		int r2 = find(i2);
+		if (r1 < r2) {
+			parent[r2] = r1;
+		} else if (r2 < r1) {
+			parent[r1] = r2;
+		}
+	}
+
+	private BinaryPlane thresholdEdges() {
+		BinaryPlane plane = new BinaryPlane(width, height);
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				if (data[offset + x] == EDGE) plane.set(x, y);
 			}
-		} else if (type == BufferedImage.TYPE_3BYTE_BGR) {
-            byte[] pixels = (byte[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-            int offset = 0;
-            for (int i = 0; i < picsize; i++) {
-                int b = pixels[offset++] & 0xff;
-                int g = pixels[offset++] & 0xff;
-                int r = pixels[offset++] & 0xff;
-                data[i] = luminance(r, g, b);
-            }
-        } else {
-			throw new IllegalArgumentException("Unsupported image type: " + type);
+		}
+		return plane;
+	}
+	
+	//NOTE: The pixels are read straight from the array behind the image
+	//rather than through getData, which copies the whole raster first.
+	private void readLuminance() {
+		RasterAccess raster = new RasterAccess(sourceImage);
+		for (int y = 0; y < height; y++) {
+			raster.getLuminance(y, data, y * width);
 		}
 	}
  
@@ -536,6 +1157,18 @@ public class CannyEdgeDetector {
 		for (int i = 0; i < data.length; i++) {
 			histogram[data[i]]++;
 		}
+		int[] remap = createContrastRemap(histogram, picsize);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = remap[data[i]];
+		}
+	}
+	
+	/**
+	 * @return the luminance each luminance is mapped to so that the histogram
+	 * of picsize pixels becomes linear
+	 */
+	
+	static int[] createContrastRemap(int[] histogram, int picsize) {
 		int[] remap = new int[256];
 		int sum = 0;
 		int j = 0;
@@ -547,20 +1180,24 @@ public class CannyEdgeDetector {
 			}
 			j = target;
 		}
-		
-		for (int i = 0; i < data.length; i++) {
-			data[i] = remap[data[i]];
-		}
+		return remap;
 	}
 	
-	private void writeEdges(int pixels[]) {
-		//NOTE: There is currently no mechanism for obtaining the edge data
-		//in any other format other than an INT_ARGB type BufferedImage.
-		//This may be easily remedied by providing alternative accessors.
-		if (edgesImage == null) {
-			edgesImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	//NOTE: The edges are kept one bit per pixel, a thirty-second of the
+	//INT_ARGB image they were once written to, unless the caller has set an
+	//image of its own to write them into.
+	private BufferedImage writeEdges(BinaryPlane plane, BufferedImage image) {
+		if (image == null) {
+			return plane.toImage();
+		}
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				row[x] = plane.get(x, y) ? -1 : 0xff000000;
+			}
+			image.setRGB(0, y, width, 1, row, 0, width);
 		}
-		edgesImage.getWritableTile(0, 0).setDataElements(0, 0, width, height, pixels);
+		return image;
 	}
  
 }
\ No newline at end of file
@@ -1,14 +1,54 @@
 package com.amazonaws.lambda.imageprocessor;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 
 public class EdgeDetector extends Filter implements RequestHandler<S3Event, String> {
-	private static float lowThreshold;
-	private static float highThreshold;
-	private static BufferedImage edgeImage;
+	
+	/**
+	 * The edge detectors that can be chosen from the file name.
+	 */
+	public enum Detector {
+		/**
+		 * CannyEdgeDetector, with the gradient magnitude and smoothing options.
+		 */
+		CANNY,
+		
+		/**
+		 * FastCannyEdgeDetector, for screening many images quickly. The gradient
+		 * magnitude and smoothing options are ignored.
+		 */
+		FAST,
+		
+		/**
+		 * StreamingCannyEdgeDetector, for images too large for the working
+		 * memory of CannyEdgeDetector. The edges are the same, but smoothing is
+		 * always by convolution.
+		 */
+		STREAMING;
+		
+		/**
+		 * Returns the detector named by a key parameter, ignoring case.
+		 * 
+		 * @param param the parameter from the file name, eg. "fast"
+		 * @return the detector
+		 * @throws IllegalArgumentException if no detector has that name
+		 */
+		public static Detector fromParam(String param) throws IllegalArgumentException {
+			return valueOf(param.toUpperCase());
+		}
+	}
+	
+	private static float[] lowThresholds;
+	private static float[] highThresholds;
+	private static CannyEdgeDetector.GradientMagnitude gradientMagnitude;
+	private static CannyEdgeDetector.Smoothing smoothing;
+	private static Detector detectorType;
+	private static EdgeTile tile;
+	private static BufferedImage[] edgeImages;
 
 	//private AmazonS3 s3 = AmazonS3ClientBuilder.standard().build();
 
@@ -46,9 +86,22 @@ public class EdgeDetector extends Filter implements RequestHandler<S3Event, Stri
 			
 			filterOperation();
 			
-			super.reencodeImage(edgeImage);
+			// tiles keep their grey levels for MergeImages, so are never lossy
+			if (tile != null) {
+				imageType = EdgeTile.TILE_IMAGE_TYPE;
+			}
 			
-			super.uploadImageToS3();
+			// a sweep of several threshold pairs uploads one image for each pair
+			ArrayList<String> keys = createSweepKeys(srcKey);
+			for (int i = 0; i < edgeImages.length; i++) {
+				if (edgeImages.length > 1) {
+					dstKey = keys.get(i);
+				}
+				
+				super.reencodeImage(edgeImages[i]);
+				
+				super.uploadImageToS3();
+			}
 			
 			return "OK";
 
@@ -64,26 +117,180 @@ public class EdgeDetector extends Filter implements RequestHandler<S3Event, Stri
 	public void setFilterParams() {
 		// Get the filter parameters and the image type from the file name
 		params = srcKey.split("_");
-		lowThreshold = Float.parseFloat(params[1]);
-		highThreshold = Float.parseFloat(params[2]);
+		// one or more low and high threshold pairs follow the name
+		int thresholds = countThresholdParams(params);
+		lowThresholds = new float[thresholds / 2];
+		highThresholds = new float[thresholds / 2];
+		for (int i = 0; i < thresholds / 2; i++) {
+			lowThresholds[i] = Float.parseFloat(params[1 + 2 * i]);
+			highThresholds[i] = Float.parseFloat(params[2 + 2 * i]);
+		}
+		// optional detector, gradient magnitude and smoothing between the thresholds and the image type
+		detectorType = Detector.CANNY;
+		tile = null;
+		gradientMagnitude = CannyEdgeDetector.GradientMagnitude.EXACT;
+		smoothing = CannyEdgeDetector.Smoothing.CONVOLUTION;
+		for (int i = thresholds + 1; i < params.length - 1; i++) {
+			if (EdgeTile.isParam(params[i])) {
+				tile = EdgeTile.fromParam(params[i]);
+			} else {
+				setOption(params[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the detector option named by a key parameter, eg. "fast",
+	 * "streaming", "approximate" or "recursive".
+	 * 
+	 * @param param the parameter from the file name
+	 * @throws IllegalArgumentException if no option has that name
+	 */
+	private static void setOption(String param) throws IllegalArgumentException {
+		try {
+			detectorType = Detector.fromParam(param);
+		} catch (IllegalArgumentException e) {
+			try {
+				gradientMagnitude = CannyEdgeDetector.GradientMagnitude.fromParam(param);
+			} catch (IllegalArgumentException e2) {
+				smoothing = CannyEdgeDetector.Smoothing.fromParam(param);
+			}
+		}
 	}
 	
 	@Override
 	public void setImageType() {
-		imageType = params[3];
+		imageType = params[params.length - 1];
 	}
 
 	@Override
 	public void filterOperation() {
+		if (tile != null) {
+			// a tile of a larger image, its edges are joined up by MergeImages
+			CannyEdgeDetector detector = new CannyEdgeDetector();
+			detector.setGradientMagnitude(gradientMagnitude);
+			detector.setSmoothing(smoothing);
+			detector.setParallelism(Runtime.getRuntime().availableProcessors());
+			detector.setLowThreshold(lowThresholds[0]);
+			detector.setHighThreshold(highThresholds[0]);
+			detector.setSourceImage(srcImage);
+			edgeImages = new BufferedImage[] { detector.processTile(tile.getCoreInTile()) };
+			return;
+		}
+		if (detectorType == Detector.FAST) {
+			// integer only and single threaded, for screening many images
+			FastCannyEdgeDetector fast = new FastCannyEdgeDetector();
+			fast.setSourceImage(srcImage);
+			edgeImages = fast.process(lowThresholds, highThresholds);
+			return;
+		}
+		if (detectorType == Detector.STREAMING) {
+			// a few rows of working memory, and one bit per pixel for the edges
+			StreamingCannyEdgeDetector streaming = new StreamingCannyEdgeDetector();
+			streaming.setGradientMagnitude(gradientMagnitude);
+			streaming.setSourceImage(srcImage);
+			edgeImages = streaming.process(lowThresholds, highThresholds);
+			return;
+		}
 		// create detector
 		CannyEdgeDetector detector = new CannyEdgeDetector();
 		// adjust its parameters as desired
-		detector.setLowThreshold(lowThreshold);
-		detector.setHighThreshold(highThreshold);
-		// apply it to an image
+		detector.setGradientMagnitude(gradientMagnitude);
+		detector.setSmoothing(smoothing);
+		// spread the gradient stages over the cores given to the function
+		detector.setParallelism(Runtime.getRuntime().availableProcessors());
+		// apply it to an image, the gradients are shared by every threshold pair
 		detector.setSourceImage(srcImage);
-		detector.process();
-		edgeImage = detector.getEdgesImage();
+		edgeImages = detector.process(lowThresholds, highThresholds);
+	}
+	
+	/**
+	 * Counts the numeric threshold parameters that follow the name in a key
+	 * split on underscores, stopping at the first option or at the image type.
+	 * 
+	 * @param params the parts of the key
+	 * @return the number of thresholds, a positive even number
+	 * @throws IllegalArgumentException if the thresholds do not form pairs
+	 */
+	public static int countThresholdParams(String[] params) throws IllegalArgumentException {
+		int count = 0;
+		while (count + 2 < params.length && isNumber(params[count + 1])) {
+			count++;
+		}
+		if (count == 0 || count % 2 != 0) {
+			throw new IllegalArgumentException("Thresholds must be given as low and high pairs");
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the keys of the images produced for a key. A key with a single
+	 * pair of thresholds produces one image under the same key. A key with
+	 * several pairs, eg. name_1_3_2_6_jpg, produces one image for each pair
+	 * under a key holding only that pair, eg. name_1_3_jpg and name_2_6_jpg.
+	 * 
+	 * @param key the key of the image given to the edge detector
+	 * @return the keys of the edge images, one for each threshold pair
+	 */
+	public static ArrayList<String> createSweepKeys(String key) {
+		String[] parts = key.split("_");
+		int thresholds = countThresholdParams(parts);
+		ArrayList<String> keys = new ArrayList<>();
+		if (thresholds == 2) {
+			keys.add(key);
+			return keys;
+		}
+		// the options and image type after the thresholds are kept on every key
+		String suffix = "";
+		for (int i = thresholds + 1; i < parts.length; i++) {
+			suffix += "_" + parts[i];
+		}
+		for (int i = 1; i < thresholds; i += 2) {
+			keys.add(parts[0] + "_" + parts[i] + "_" + parts[i + 1] + suffix);
+		}
+		return keys;
+	}
+	
+	/**
+	 * Checks if the edges of an image can be detected in tiles, so that
+	 * GridImage may split it. Tiles are only detected with CannyEdgeDetector
+	 * and a single pair of thresholds. The edges are exactly those of the whole
+	 * image when smoothing by convolution, and very nearly so with recursive
+	 * smoothing, whose effect never quite dies away.
+	 * 
+	 * @param filterParams the parameters of the filter, thresholds first
+	 * @return true if the image may be split into tiles
+	 */
+	public static boolean canDetectInTiles(String[] filterParams) {
+		if (filterParams == null) {
+			return false;
+		}
+		int count = 0;
+		while (count < filterParams.length && isNumber(filterParams[count])) {
+			count++;
+		}
+		if (count != 2) {
+			return false;
+		}
+		for (int i = count; i < filterParams.length; i++) {
+			try {
+				if (Detector.fromParam(filterParams[i]) != Detector.CANNY) {
+					return false;
+				}
+			} catch (IllegalArgumentException e) {
+				// a gradient magnitude or smoothing
+			}
+		}
+		return true;
+	}
+	
+	private static boolean isNumber(String param) {
+		try {
+			Float.parseFloat(param);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
 	}
 	
 }
\ No newline at end of file
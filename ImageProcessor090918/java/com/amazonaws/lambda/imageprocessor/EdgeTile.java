@@ -0,0 +1,126 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Where one tile of an image split for edge detection sits in the whole image.
+ * Each tile carries a halo of the pixels around it, so the gradients inside the
+ * tile are the same as those of the whole image. The tile is given to
+ * EdgeDetector in its key as a single parameter,
+ * tile-x-y-width-height-left-top-right-bottom, giving the core of the tile in
+ * the whole image and the width of the halo on each side.
+ *
+ * @author ryanorr
+ *
+ */
+public class EdgeTile {
+
+	/**
+	 * The width of the halo. Edges are kept where the gradient at a pixel is a
+	 * maximum, which depends on the luminance up to 2 * w - 1 pixels away for a
+	 * Gaussian kernel width w, and EdgeDetector uses the default width of 16.
+	 */
+	public static final int HALO = 2 * 16 - 1;
+
+	/**
+	 * The format of the images of tiles, both those given to EdgeDetector and
+	 * those it returns, which must be lossless so that the gradients in a halo
+	 * match those in the neighbouring core and the grey levels reach MergeImages
+	 * as they are.
+	 */
+	public static final String TILE_IMAGE_TYPE = "png";
+
+	private static final String PREFIX = "tile-";
+
+	private final Rectangle core;
+	private final int left;
+	private final int top;
+	private final int right;
+	private final int bottom;
+
+	/**
+	 * @param core the part of the whole image the tile covers
+	 * @param left the width of the halo on the left of the core
+	 * @param top the width of the halo above the core
+	 * @param right the width of the halo on the right of the core
+	 * @param bottom the width of the halo below the core
+	 */
+	public EdgeTile(Rectangle core, int left, int top, int right, int bottom) {
+		if (left < 0 || top < 0 || right < 0 || bottom < 0) throw new IllegalArgumentException();
+		this.core = new Rectangle(core);
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	/**
+	 * Creates the tile covering a core of an image, with as much of the halo as
+	 * fits inside the image.
+	 *
+	 * @param core the part of the image the tile covers
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the tile
+	 */
+	public static EdgeTile create(Rectangle core, int width, int height) {
+		return new EdgeTile(core, Math.min(HALO, core.x), Math.min(HALO, core.y),
+				Math.min(HALO, width - core.x - core.width), Math.min(HALO, height - core.y - core.height));
+	}
+
+	/**
+	 * @param param a parameter from a file name
+	 * @return true if the parameter describes a tile
+	 */
+	public static boolean isParam(String param) {
+		return param.startsWith(PREFIX);
+	}
+
+	/**
+	 * Reads a tile from a parameter of a file name.
+	 *
+	 * @param param the parameter, as made by toParam
+	 * @return the tile
+	 * @throws IllegalArgumentException if the parameter does not describe a tile
+	 */
+	public static EdgeTile fromParam(String param) throws IllegalArgumentException {
+		String[] values = isParam(param) ? param.substring(PREFIX.length()).split("-") : new String[0];
+		if (values.length != 8) {
+			throw new IllegalArgumentException("Not a tile: " + param);
+		}
+		int[] v = new int[values.length];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = Integer.parseInt(values[i]);
+		}
+		return new EdgeTile(new Rectangle(v[0], v[1], v[2], v[3]), v[4], v[5], v[6], v[7]);
+	}
+
+	/**
+	 * @return the parameter describing the tile in a file name
+	 */
+	public String toParam() {
+		return PREFIX + core.x + "-" + core.y + "-" + core.width + "-" + core.height + "-" + left + "-" + top
+				+ "-" + right + "-" + bottom;
+	}
+
+	/**
+	 * @return the part of the whole image the tile covers, without its halo
+	 */
+	public Rectangle getCore() {
+		return new Rectangle(core);
+	}
+
+	/**
+	 * @return the part of the whole image the tile and its halo cover
+	 */
+	public Rectangle getBounds() {
+		return new Rectangle(core.x - left, core.y - top, core.width + left + right, core.height + top + bottom);
+	}
+
+	/**
+	 * @return the core inside the tile image, which begins at the halo
+	 */
+	public Rectangle getCoreInTile() {
+		return new Rectangle(left, top, core.width, core.height);
+	}
+}
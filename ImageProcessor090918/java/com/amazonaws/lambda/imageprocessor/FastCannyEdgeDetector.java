@@ -0,0 +1,339 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A fast, integer only variant of the Canny edge detector for screening large
+ * numbers of images, where the precision of CannyEdgeDetector is not needed.
+ * <p>
+ * The luminance is smoothed with a fixed 3x3 binomial kernel, an approximation
+ * to a Gaussian with a radius of about 0.85, and differentiated with the 3x3
+ * Sobel operator. The gradient magnitude is |x| + |y| and its direction is
+ * rounded to one of four angles for non-maximal suppression. Hysteresis is the
+ * same as in CannyEdgeDetector, and the thresholds are on the same scale, so the
+ * two detectors find similar edges at the same thresholds.
+ * <p>
+ * Every plane is held in bytes or shorts: four bytes per pixel against the 24
+ * of CannyEdgeDetector. The detector is designed for single threaded use only.
+ *
+ * @author ryanorr
+ *
+ */
+public class FastCannyEdgeDetector {
+
+	/**
+	 * The Sobel operator has a gain of 8, so thresholds are scaled by 8 to be
+	 * compared with its magnitudes.
+	 */
+	private static final int SOBEL_SCALE = 8;
+
+	/**
+	 * tan(22.5) and tan(67.5) in 8 bit fixed point, the edges of the four
+	 * direction sectors.
+	 */
+	private static final int TAN_22_5 = 106;
+	private static final int TAN_67_5 = 618;
+
+	/**
+	 * Directions of the gradient, naming the neighbours it is compared with.
+	 */
+	private static final byte HORIZONTAL = 0;
+	private static final byte VERTICAL = 1;
+	private static final byte DIAGONAL = 2;
+	private static final byte ANTI_DIAGONAL = 3;
+
+	private static final byte KEPT = 1;
+	private static final byte EDGE = 1;
+	private static final int WHITE = 0xFFFFFFFF;
+	private static final int BLACK = 0xFF000000;
+
+	private int width;
+	private int height;
+	private int picsize;
+	private BufferedImage sourceImage;
+	private BufferedImage edgesImage;
+	private float lowThreshold;
+	private float highThreshold;
+
+	/**
+	 * The luminance, then the direction of the gradient, then whether
+	 * non-maximal suppression kept each pixel.
+	 */
+	private byte[] luminance;
+
+	/**
+	 * The smoothed luminance, then the edge marks of hysteresis.
+	 */
+	private byte[] smoothed;
+
+	/**
+	 * The gradient magnitude.
+	 */
+	private short[] magnitude;
+	private int[] stack;
+
+	/**
+	 * Constructs a new detector with the same default thresholds as
+	 * CannyEdgeDetector.
+	 */
+	public FastCannyEdgeDetector() {
+		lowThreshold = 2.5f;
+		highThreshold = 7.5f;
+	}
+
+	/**
+	 * @return the source image, or null
+	 */
+	public BufferedImage getSourceImage() {
+		return sourceImage;
+	}
+
+	/**
+	 * @param image the image in which edges will be detected
+	 */
+	public void setSourceImage(BufferedImage image) {
+		sourceImage = image;
+	}
+
+	/**
+	 * @return an opaque TYPE_INT_ARGB image in which edge pixels are white and all
+	 *         other pixels black, or null if process has not been called
+	 */
+	public BufferedImage getEdgesImage() {
+		return edgesImage;
+	}
+
+	/**
+	 * @return the low hysteresis threshold, 2.5 by default
+	 */
+	public float getLowThreshold() {
+		return lowThreshold;
+	}
+
+	/**
+	 * @param threshold the low hysteresis threshold, at least 0
+	 */
+	public void setLowThreshold(float threshold) {
+		if (threshold < 0) throw new IllegalArgumentException();
+		lowThreshold = threshold;
+	}
+
+	/**
+	 * @return the high hysteresis threshold, 7.5 by default
+	 */
+	public float getHighThreshold() {
+		return highThreshold;
+	}
+
+	/**
+	 * @param threshold the high hysteresis threshold, at least 0
+	 */
+	public void setHighThreshold(float threshold) {
+		if (threshold < 0) throw new IllegalArgumentException();
+		highThreshold = threshold;
+	}
+
+	/**
+	 * Detects the edges in the source image with the thresholds set on the
+	 * detector.
+	 */
+	public void process() {
+		process(new float[] { lowThreshold }, new float[] { highThreshold });
+	}
+
+	/**
+	 * Detects edges in the source image once for each of several pairs of
+	 * hysteresis thresholds, sharing the gradients between them, in the same way
+	 * as CannyEdgeDetector.process(float[], float[]).
+	 *
+	 * @param lowThresholds the low hysteresis threshold of each pair
+	 * @param highThresholds the high hysteresis threshold of each pair
+	 * @return an image of the edges for each pair
+	 */
+	public BufferedImage[] process(float[] lowThresholds, float[] highThresholds) {
+		if (lowThresholds.length == 0 || lowThresholds.length != highThresholds.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < lowThresholds.length; i++) {
+			if (lowThresholds[i] < 0 || highThresholds[i] < 0) throw new IllegalArgumentException();
+		}
+		width = sourceImage.getWidth();
+		height = sourceImage.getHeight();
+		picsize = width * height;
+		initArrays();
+		readLuminance();
+		smooth();
+		computeGradients();
+		suppressNonMaxima();
+
+		BufferedImage[] images = new BufferedImage[lowThresholds.length];
+		for (int i = 0; i < images.length; i++) {
+			int low = Math.round(lowThresholds[i] * SOBEL_SCALE);
+			int high = Math.round(highThresholds[i] * SOBEL_SCALE);
+			performHysteresis(low, high);
+			images[i] = writeEdges();
+		}
+		edgesImage = images[images.length - 1];
+		return images;
+	}
+
+	private void initArrays() {
+		if (luminance == null || luminance.length != picsize) {
+			luminance = new byte[picsize];
+			smoothed = new byte[picsize];
+			magnitude = new short[picsize];
+		}
+	}
+
+	private void readLuminance() {
+		RasterAccess raster = new RasterAccess(sourceImage);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			raster.getLuminance(y, row, 0);
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				luminance[offset + x] = (byte) row[x];
+			}
+		}
+	}
+
+	/**
+	 * Smooths the luminance with the binomial kernel [1 2 1] down each column and
+	 * then along each row, repeating the pixels on the border.
+	 */
+	private void smooth() {
+		int[] column = new int[width];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int above = y == 0 ? offset : offset - width;
+			int below = y == height - 1 ? offset : offset + width;
+			for (int x = 0; x < width; x++) {
+				column[x] = (luminance[above + x] & 0xFF) + 2 * (luminance[offset + x] & 0xFF)
+						+ (luminance[below + x] & 0xFF);
+			}
+			for (int x = 0; x < width; x++) {
+				int left = column[x == 0 ? 0 : x - 1];
+				int right = column[x == width - 1 ? x : x + 1];
+				smoothed[offset + x] = (byte) ((left + 2 * column[x] + right + 8) >> 4);
+			}
+		}
+	}
+
+	/**
+	 * Applies the Sobel operator inside a one pixel border, storing the magnitude
+	 * and the direction of the gradient. The border has no gradient.
+	 */
+	private void computeGradients() {
+		Arrays.fill(magnitude, (short) 0);
+		byte[] s = smoothed;
+		for (int y = 1; y < height - 1; y++) {
+			int offset = y * width;
+			for (int x = 1; x < width - 1; x++) {
+				int i = offset + x;
+				int nw = s[i - width - 1] & 0xFF;
+				int n = s[i - width] & 0xFF;
+				int ne = s[i - width + 1] & 0xFF;
+				int w = s[i - 1] & 0xFF;
+				int e = s[i + 1] & 0xFF;
+				int sw = s[i + width - 1] & 0xFF;
+				int so = s[i + width] & 0xFF;
+				int se = s[i + width + 1] & 0xFF;
+				int gx = (ne + 2 * e + se) - (nw + 2 * w + sw);
+				int gy = (sw + 2 * so + se) - (nw + 2 * n + ne);
+				int ax = Math.abs(gx);
+				int ay = Math.abs(gy);
+				magnitude[i] = (short) (ax + ay);
+
+				// rows run downwards, so a gradient with x and y of the same sign
+				// points along the diagonal from top left to bottom right
+				luminance[i] = (ay << 8) <= ax * TAN_22_5 ? HORIZONTAL
+						: (ay << 8) >= ax * TAN_67_5 ? VERTICAL
+						: (gx ^ gy) >= 0 ? DIAGONAL : ANTI_DIAGONAL;
+			}
+		}
+	}
+
+	/**
+	 * Marks the pixels whose magnitude is a maximum along their gradient. The
+	 * marks replace the directions, and the magnitudes are left as they are.
+	 */
+	private void suppressNonMaxima() {
+		// the distance to the neighbours compared in each direction
+		int[] step = new int[4];
+		step[HORIZONTAL] = 1;
+		step[VERTICAL] = width;
+		step[DIAGONAL] = width + 1;
+		step[ANTI_DIAGONAL] = width - 1;
+
+		Arrays.fill(luminance, 0, Math.min(width, picsize), (byte) 0);
+		Arrays.fill(luminance, Math.max(0, picsize - width), picsize, (byte) 0);
+		for (int y = 1; y < height - 1; y++) {
+			int offset = y * width;
+			luminance[offset] = 0;
+			for (int x = 1; x < width - 1; x++) {
+				int i = offset + x;
+				int m = magnitude[i];
+				int d = step[luminance[i]];
+				// ties go to the later pixel, so a plateau leaves a single edge
+				luminance[i] = m >= magnitude[i - d] && m > magnitude[i + d] ? KEPT : 0;
+			}
+			luminance[offset + width - 1] = 0;
+		}
+	}
+
+	/**
+	 * Marks every pixel at or above the low threshold after non-maximal
+	 * suppression that is connected to a pixel at or above the high threshold,
+	 * following edges with an explicit stack.
+	 */
+	private void performHysteresis(int low, int high) {
+		byte[] marks = smoothed;
+		Arrays.fill(marks, (byte) 0);
+		if (stack == null) stack = new int[Math.min(picsize, 1024)];
+		for (int start = 0; start < picsize; start++) {
+			if (marks[start] != 0 || suppressed(start) < high) continue;
+			int top = 0;
+			marks[start] = EDGE;
+			stack[top++] = start;
+			while (top > 0) {
+				int i = stack[--top];
+				int x1 = i % width;
+				int y1 = i / width;
+				int x0 = x1 == 0 ? x1 : x1 - 1;
+				int x2 = x1 == width - 1 ? x1 : x1 + 1;
+				int y0 = y1 == 0 ? y1 : y1 - 1;
+				int y2 = y1 == height - 1 ? y1 : y1 + 1;
+				for (int y = y0; y <= y2; y++) {
+					for (int x = x0; x <= x2; x++) {
+						int i2 = x + y * width;
+						if (marks[i2] == 0 && suppressed(i2) >= low) {
+							marks[i2] = EDGE;
+							if (top == stack.length) {
+								stack = Arrays.copyOf(stack, Math.min(picsize, 2 * top));
+							}
+							stack[top++] = i2;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the magnitude of a pixel kept by non-maximal suppression, otherwise 0
+	 */
+	private int suppressed(int i) {
+		return luminance[i] == KEPT ? magnitude[i] : 0;
+	}
+
+	private BufferedImage writeEdges() {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < picsize; i++) {
+			pixels[i] = smoothed[i] == EDGE ? WHITE : BLACK;
+		}
+		return image;
+	}
+}
@@ -59,6 +59,7 @@ public abstract class Filter {
 	protected static String imageType;
 	protected static InputStream objectData;
 	protected static BufferedImage srcImage;
+	protected static RasterAccess srcRaster;
 	protected static int srcHeight;
 	protected static int srcWidth;
 	protected static int outputPixels[];
@@ -132,6 +133,8 @@ public abstract class Filter {
 
 	public void readSourceImage() throws IOException {
 		srcImage = ImageIO.read(objectData);
+		// unwrap the pixel data once, so filters can work on the backing arrays
+		srcRaster = new RasterAccess(srcImage);
 	}
 
 	public void setImageHeightAndWidth() {
@@ -146,6 +149,14 @@ public abstract class Filter {
 		outputPixels = new int[totalPixels];
 	}
 
+	/**
+	 * Writes the ARGB values in outputPixels back to the source image in one bulk
+	 * operation, ready for it to be re-encoded.
+	 */
+	public void writeOutputPixels() {
+		srcRaster.setARGB(outputPixels);
+	}
+
 	/**
 	 * Method that returns the content type of the image object to be used as part
 	 * of the resulting file's meta data on Amazon S3. The content type will take
@@ -188,6 +199,18 @@ public abstract class Filter {
 				"Successfully filtered " + srcBucket + "/" + srcKey + " and uploaded to " + DST_BUCKET + "/" + dstKey);
 	}
 
+	/**
+	 * Uploads a small text file beside the filtered image, eg. the json sidecar
+	 * of a tile.
+	 * 
+	 * @param key the key of the text file
+	 * @param text the contents
+	 */
+	public void uploadTextToS3(String key, String text) {
+		System.out.println("Writing to: " + DST_BUCKET + "/" + key);
+		s3.putObject(DST_BUCKET, key, text);
+	}
+
 	/**
 	 * Abstract method that will be implemented differently in every subclass of
 	 * filter, due to its specific filtering algorithm.
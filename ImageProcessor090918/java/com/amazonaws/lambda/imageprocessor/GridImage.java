@@ -1,5 +1,6 @@
 package com.amazonaws.lambda.imageprocessor;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -129,8 +130,8 @@ public class GridImage implements RequestHandler<S3Event, String> {
 				return "";
 			}
 
-			// check if image has been set to use the blob or edge detection algorithms, if
-			// so do not split
+			// check if image has been set to use the edge detection algorithm in a way
+			// that cannot be split, if so do not split
 			// may also be caught above if the image is too small for splitting, result is
 			// the same
 			if (willUseNoSplitAlgorithm()) {
@@ -147,8 +148,16 @@ public class GridImage implements RequestHandler<S3Event, String> {
 			// set dimensions for sub-images
 			setDimensionsForSubImages();
 
-			// run method to split images and save sub-images to S3 bucket
-			subDivideAndSaveImages();
+			// run method to split images and save sub-images to S3 bucket, edge
+			// detection needs a halo around each tile and blob detection needs to know
+			// where each tile sits
+			if (image.getFilterId().equals(S3Buckets.EDGE_DETECTOR)) {
+				subDivideAndSaveEdgeTiles();
+			} else if (image.getFilterId().equals(S3Buckets.BLOB_DETECTOR)) {
+				subDivideAndSaveBlobTiles();
+			} else {
+				subDivideAndSaveImages();
+			}
 
 			// add the values for the sub-image keys to the Image object
 			image.setSubImages(subImageKeys);
@@ -204,16 +213,20 @@ public class GridImage implements RequestHandler<S3Event, String> {
 	}
 
 	/**
-	 * Checks if the image to be filtered has been specified to use the blob
-	 * detector or edge detection algorithms. Both of these algorithms require the
-	 * image to be full and not split.
+	 * Checks if the image to be filtered has been specified to use the edge
+	 * detector in a way that cannot be split into tiles. This requires the image
+	 * to be full and not split. The blob detector finds the components of each
+	 * tile, which MergeImages joins up, so it can be split, except when only the
+	 * statistics are wanted: it then reads the image in bands itself, so the
+	 * image is never decoded whole here.
 	 *
 	 * @return true if the image is not to be split, false if it is
 	 */
 	public static boolean willUseNoSplitAlgorithm() {
-		if (image.getFilterId().equals(S3Buckets.BLOB_DETECTOR)
-				|| image.getFilterId().equals(S3Buckets.EDGE_DETECTOR)) {
-			return true;
+		if (image.getFilterId().equals(S3Buckets.EDGE_DETECTOR)) {
+			return !EdgeDetector.canDetectInTiles(image.getFilterParams());
+		} else if (image.getFilterId().equals(S3Buckets.BLOB_DETECTOR)) {
+			return BlobDetector.isStatsOnly(image.getFilterParams());
 		} else {
 			return false;
 		}
@@ -313,6 +326,36 @@ public class GridImage implements RequestHandler<S3Event, String> {
 		return fileName;
 	}
 
+	/**
+	 * Creates the file name of a tile for the edge detector, which carries the
+	 * position of the tile and its halo before the image type. Tiles are always
+	 * saved in the lossless EdgeTile.TILE_IMAGE_TYPE.
+	 * 
+	 * @param count the number of the tile
+	 * @param tile the tile
+	 * @return the file name
+	 */
+	public static String createFileNameWithParams(int count, EdgeTile tile) {
+		String fileName = createFileNameWithParams(count);
+		int type = fileName.lastIndexOf('_');
+		return fileName.substring(0, type) + "_" + tile.toParam() + "_" + EdgeTile.TILE_IMAGE_TYPE;
+	}
+
+	/**
+	 * Creates the file name of a tile for the blob detector, which carries the
+	 * position of the tile before the image type. Tiles are always saved in the
+	 * lossless BlobTile.TILE_IMAGE_TYPE.
+	 * 
+	 * @param count the number of the tile
+	 * @param tile the tile
+	 * @return the file name
+	 */
+	public static String createFileNameWithParams(int count, BlobTile tile) {
+		String fileName = createFileNameWithParams(count);
+		int type = fileName.lastIndexOf('_');
+		return fileName.substring(0, type) + "_" + tile.toParam() + "_" + BlobTile.TILE_IMAGE_TYPE;
+	}
+
 	/**
 	 * Splits the image based on no. of rows and columns and writes the sub-images
 	 * to an S3 bucket. Reference -
@@ -337,36 +380,103 @@ public class GridImage implements RequestHandler<S3Event, String> {
 				smallImages[xloop][yloop] = buffImage.getSubimage(xloop * smallWidth, yloop * smallHeight, smallWidth,
 						smallHeight);
 
-				// write the sub-image to an S3 bucket
-				try {
-					// write the sub-images to an input stream
-					ByteArrayOutputStream os = new ByteArrayOutputStream();
-					ImageIO.write(smallImages[xloop][yloop], imageType, os);
-					InputStream is = new ByteArrayInputStream(os.toByteArray());
-					// set meta-data; content-length and content type
-					ObjectMetadata meta = new ObjectMetadata();
-					meta.setContentLength(os.size());
-					meta.setContentType(image.getContentTypeForMetaData());
-					// iterate the count for labelling of the sub-images
-					count++;
-					dstKeySubImage = createFileNameWithParams(count);
-
-					System.out.println("Writing to: " + dstBucket + "/" + dstKeySubImage);
-					s3.putObject(dstBucket, dstKeySubImage, is, meta);
-					System.out.println(
-							"Successfully divided " + srcBucket + "/" + srcKey.replace(".json", "." + imageType)
-									+ " and uploaded to " + dstBucket + "/" + dstKeySubImage);
-					// add the name of each sub-image to an ArrayList
-					subImageKeys.add(dstKeySubImage);
-					// System.out.println("The subImageKeys array list at this point : "
-					// +subImageKeys);
-					// System.out.println("The loop count : " +count);
-
-				} catch (IOException e) {
-					System.err.println("Problem writing sub-images to S3 Bucket.");
-					e.printStackTrace();
-				}
+				// iterate the count for labelling of the sub-images
+				count++;
+				dstKeySubImage = createFileNameWithParams(count);
+				saveSubImage(smallImages[xloop][yloop], dstKeySubImage);
 			}
 		}
 	}
+
+	/**
+	 * Splits the image into tiles for the edge detector, in the same order as
+	 * subDivideAndSaveImages. The tiles cover the whole image between them, and
+	 * each is saved losslessly with a halo of the pixels around it so that its
+	 * edges can be joined to those of its neighbours by MergeImages.
+	 */
+	public static void subDivideAndSaveEdgeTiles() {
+		int width = buffImage.getWidth();
+		int height = buffImage.getHeight();
+		int count = 0;
+		for (int xloop = 0; xloop < columns; xloop++) {
+			int x = xloop * width / columns;
+			for (int yloop = 0; yloop < rows; yloop++) {
+				int y = yloop * height / rows;
+				Rectangle core = new Rectangle(x, y, (xloop + 1) * width / columns - x,
+						(yloop + 1) * height / rows - y);
+				EdgeTile tile = EdgeTile.create(core, width, height);
+				Rectangle bounds = tile.getBounds();
+				count++;
+				saveSubImage(buffImage.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height),
+						createFileNameWithParams(count, tile), EdgeTile.TILE_IMAGE_TYPE, "image/png");
+			}
+		}
+	}
+
+	/**
+	 * Splits the image into tiles for the blob detector, in the same order as
+	 * subDivideAndSaveImages. The tiles cover the whole image between them, and
+	 * are saved losslessly so that each pixel is thresholded as it would be in
+	 * the whole image.
+	 */
+	public static void subDivideAndSaveBlobTiles() {
+		int width = buffImage.getWidth();
+		int height = buffImage.getHeight();
+		int count = 0;
+		for (int xloop = 0; xloop < columns; xloop++) {
+			int x = xloop * width / columns;
+			for (int yloop = 0; yloop < rows; yloop++) {
+				int y = yloop * height / rows;
+				Rectangle core = new Rectangle(x, y, (xloop + 1) * width / columns - x,
+						(yloop + 1) * height / rows - y);
+				count++;
+				saveSubImage(buffImage.getSubimage(core.x, core.y, core.width, core.height),
+						createFileNameWithParams(count, new BlobTile(core)), BlobTile.TILE_IMAGE_TYPE, "image/png");
+			}
+		}
+	}
+
+	/**
+	 * Writes a sub-image to the filter bucket in the format of the image and adds
+	 * its key to the list of sub-image keys.
+	 * 
+	 * @param subImage the sub-image
+	 * @param dstKeySubImage the key to write it to
+	 */
+	private static void saveSubImage(BufferedImage subImage, String dstKeySubImage) {
+		saveSubImage(subImage, dstKeySubImage, imageType, image.getContentTypeForMetaData());
+	}
+
+	/**
+	 * Writes a sub-image to the filter bucket and adds its key to the list of
+	 * sub-image keys.
+	 * 
+	 * @param subImage the sub-image
+	 * @param dstKeySubImage the key to write it to
+	 * @param type the format to write it in
+	 * @param contentType the content type of the format
+	 */
+	private static void saveSubImage(BufferedImage subImage, String dstKeySubImage, String type,
+			String contentType) {
+		try {
+			// write the sub-images to an input stream
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			ImageIO.write(subImage, type, os);
+			InputStream is = new ByteArrayInputStream(os.toByteArray());
+			// set meta-data; content-length and content type
+			ObjectMetadata meta = new ObjectMetadata();
+			meta.setContentLength(os.size());
+			meta.setContentType(contentType);
+
+			System.out.println("Writing to: " + dstBucket + "/" + dstKeySubImage);
+			s3.putObject(dstBucket, dstKeySubImage, is, meta);
+			System.out.println("Successfully divided " + srcBucket + "/" + srcKey.replace(".json", "." + imageType)
+					+ " and uploaded to " + dstBucket + "/" + dstKeySubImage);
+			// add the name of each sub-image to an ArrayList
+			subImageKeys.add(dstKeySubImage);
+		} catch (IOException e) {
+			System.err.println("Problem writing sub-images to S3 Bucket.");
+			e.printStackTrace();
+		}
+	}
 }
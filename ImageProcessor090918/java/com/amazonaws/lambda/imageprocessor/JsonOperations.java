@@ -8,10 +8,13 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.List;
 
 import com.amazonaws.services.s3.model.S3Object;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 
 /**
  * Contains methods for getting a Java object of type Image from a JSON file and 
@@ -60,6 +63,67 @@ public class JsonOperations {
         writer.write(gson.toJson(image));
         writer.close();
         return file;
-	}	
+	}
+
+	/**
+	 * Reads the json sidecar of a tile split for the blob detector.
+	 * @param s3Object - the S3Object of the sidecar
+	 * @return - returns the tile, with its components
+	 * @throws IOException
+	 */
+	public static BlobTile jsonFileToBlobTile(S3Object s3Object) throws IOException {
+		Gson gson = new Gson();
+		InputStream input = s3Object.getObjectContent();
+		BufferedReader buff = new BufferedReader(new InputStreamReader(input));
+		BlobTile tile = gson.fromJson(buff, BlobTile.class);
+		buff.close();
+		input.close();
+		return tile;
+	}
+
+	/**
+	 * Creates the json sidecar of a tile split for the blob detector.
+	 * @param tile - the tile, with its components
+	 * @return - returns the json text
+	 */
+	public static String blobTileToJson(BlobTile tile) {
+		return new Gson().toJson(tile);
+	}
+
+	/**
+	 * Creates the json statistics of the blobs of an image, with the size of
+	 * the image and the bounds, mass, centroid and shape of each blob. The
+	 * centroids are rounded to hundredths of a pixel, and the orientation in
+	 * radians and eccentricity to four places, to keep the text small.
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 * @param blobs - the blobs, in the order listed
+	 * @return - returns the json text
+	 */
+	public static String blobsToJson(int width, int height, List<BlobFinder.Blob> blobs) {
+		JsonArray array = new JsonArray();
+		for (BlobFinder.Blob blob : blobs) {
+			JsonObject json = new JsonObject();
+			json.addProperty("xMin", blob.xMin);
+			json.addProperty("xMax", blob.xMax);
+			json.addProperty("yMin", blob.yMin);
+			json.addProperty("yMax", blob.yMax);
+			json.addProperty("mass", blob.mass);
+			json.addProperty("xCentroid", round(blob.xCentroid, 100));
+			json.addProperty("yCentroid", round(blob.yCentroid, 100));
+			json.addProperty("orientation", round(blob.orientation, 10000));
+			json.addProperty("eccentricity", round(blob.eccentricity, 10000));
+			array.add(json);
+		}
+		JsonObject json = new JsonObject();
+		json.addProperty("width", width);
+		json.addProperty("height", height);
+		json.add("blobs", array);
+		return new Gson().toJson(json);
+	}
+
+	private static double round(double value, double scale) {
+		return Math.round(value * scale) / scale;
+	}
 
 }
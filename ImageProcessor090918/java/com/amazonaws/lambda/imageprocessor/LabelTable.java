@@ -0,0 +1,427 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * The labels of a connected-component labelling, with the bounds and mass of
+ * the pixels given each label. The tables start small and double when they run
+ * out, so they hold only as many labels as the image needs. Labels that belong
+ * to the same component are joined in a union-find forest rooted at the
+ * smallest label, with the paths halved on every find. Each label also keeps
+ * the first of its pixels in raster order, which orders the components the
+ * same way however the image was scanned, and the sums of x, y and their
+ * products over its pixels, the moments that give the centroid and shape of
+ * a blob without another pass over the image.
+ * <p>
+ * Label 0 is the background and is never used.
+ *
+ * @author ryanorr
+ *
+ */
+class LabelTable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int[] parent;
+	private int[] xMin;
+	private int[] xMax;
+	private int[] yMin;
+	private int[] yMax;
+	private int[] mass;
+	private int[] first;
+	private long[] sumX;
+	private long[] sumY;
+	private long[] sumXX;
+	private long[] sumYY;
+	private long[] sumXY;
+	private int size;
+	private int width;
+
+	/**
+	 * @param width the width of the image, to find the raster order of pixels
+	 */
+	LabelTable(int width) {
+		this.width = width;
+		parent = new int[INITIAL_CAPACITY];
+		xMin = new int[INITIAL_CAPACITY];
+		xMax = new int[INITIAL_CAPACITY];
+		yMin = new int[INITIAL_CAPACITY];
+		yMax = new int[INITIAL_CAPACITY];
+		mass = new int[INITIAL_CAPACITY];
+		first = new int[INITIAL_CAPACITY];
+		sumX = new long[INITIAL_CAPACITY];
+		sumY = new long[INITIAL_CAPACITY];
+		sumXX = new long[INITIAL_CAPACITY];
+		sumYY = new long[INITIAL_CAPACITY];
+		sumXY = new long[INITIAL_CAPACITY];
+		size = 1;
+	}
+
+	/**
+	 * @return the label after the last one used
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Drops every label, keeping the tables for reuse.
+	 */
+	void clear() {
+		size = 1;
+	}
+
+	/**
+	 * Makes a new label for a single pixel.
+	 *
+	 * @return the label
+	 */
+	int add(int x, int y) {
+		if (size == parent.length) grow(size + 1);
+		int label = size++;
+		parent[label] = label;
+		xMin[label] = x;
+		xMax[label] = x;
+		yMin[label] = y;
+		yMax[label] = y;
+		mass[label] = 1;
+		first[label] = y * width + x;
+		sumX[label] = x;
+		sumY[label] = y;
+		sumXX[label] = (long) x * x;
+		sumYY[label] = (long) y * y;
+		sumXY[label] = (long) x * y;
+		return label;
+	}
+
+	/**
+	 * Makes a new label for a group of pixels, with no moments until they are
+	 * added.
+	 *
+	 * @param firstPixel the index of the first of the pixels in raster order
+	 * @return the label
+	 */
+	int add(int xMin, int xMax, int yMin, int yMax, int mass, int firstPixel) {
+		if (size == parent.length) grow(size + 1);
+		int label = size++;
+		parent[label] = label;
+		this.xMin[label] = xMin;
+		this.xMax[label] = xMax;
+		this.yMin[label] = yMin;
+		this.yMax[label] = yMax;
+		this.mass[label] = mass;
+		first[label] = firstPixel;
+		sumX[label] = 0;
+		sumY[label] = 0;
+		sumXX[label] = 0;
+		sumYY[label] = 0;
+		sumXY[label] = 0;
+		return label;
+	}
+
+	/**
+	 * Makes a new label with the bounds, mass, first pixel and moments of a
+	 * label of another table.
+	 *
+	 * @return the label
+	 */
+	int copy(LabelTable other, int otherLabel) {
+		int label = add(other.xMin[otherLabel], other.xMax[otherLabel], other.yMin[otherLabel],
+				other.yMax[otherLabel], other.mass[otherLabel], other.first[otherLabel]);
+		addMoments(label, other.sumX[otherLabel], other.sumY[otherLabel], other.sumXX[otherLabel],
+				other.sumYY[otherLabel], other.sumXY[otherLabel]);
+		return label;
+	}
+
+	/**
+	 * Adds a pixel to a label. Pixels are added in raster order, so the pixel
+	 * is on the last row of the label.
+	 */
+	void addPixel(int label, int x, int y) {
+		yMax[label] = y;
+		mass[label]++;
+		if (x < xMin[label])
+			xMin[label] = x;
+		if (x > xMax[label])
+			xMax[label] = x;
+		sumX[label] += x;
+		sumY[label] += y;
+		sumXX[label] += (long) x * x;
+		sumYY[label] += (long) y * y;
+		sumXY[label] += (long) x * y;
+	}
+
+	/**
+	 * Adds a group of pixels to a label, in any order, without their moments.
+	 *
+	 * @param firstPixel the index of the first of the pixels in raster order
+	 */
+	void addPixels(int label, int xMin, int xMax, int yMin, int yMax, int mass, int firstPixel) {
+		if (xMin < this.xMin[label])
+			this.xMin[label] = xMin;
+		if (xMax > this.xMax[label])
+			this.xMax[label] = xMax;
+		if (yMin < this.yMin[label])
+			this.yMin[label] = yMin;
+		if (yMax > this.yMax[label])
+			this.yMax[label] = yMax;
+		this.mass[label] += mass;
+		if (firstPixel < first[label])
+			first[label] = firstPixel;
+	}
+
+	/**
+	 * Adds the sums of x, y, x*x, y*y and x*y over a group of pixels to the
+	 * moments of a label.
+	 */
+	void addMoments(int label, long sumX, long sumY, long sumXX, long sumYY, long sumXY) {
+		this.sumX[label] += sumX;
+		this.sumY[label] += sumY;
+		this.sumXX[label] += sumXX;
+		this.sumYY[label] += sumYY;
+		this.sumXY[label] += sumXY;
+	}
+
+	/**
+	 * Adds the moments of a run of pixels along a row to a label.
+	 *
+	 * @param x0 the x of the first pixel of the run
+	 * @param x1 the x after the last pixel of the run
+	 */
+	void addRunMoments(int label, int x0, int x1, int y) {
+		long n = x1 - x0;
+		long sx = n * (x0 + x1 - 1) / 2;
+		// the sum of the squares up to x1 - 1 less those up to x0 - 1
+		long sxx = squares(x1 - 1) - squares(x0 - 1);
+		addMoments(label, sx, n * y, sxx, n * y * y, sx * y);
+	}
+
+	private static long squares(long k) {
+		return k * (k + 1) * (2 * k + 1) / 6;
+	}
+
+	int find(int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	void union(int label1, int label2) {
+		int r1 = find(label1);
+		int r2 = find(label2);
+		if (r1 < r2) {
+			parent[r2] = r1;
+		} else if (r2 < r1) {
+			parent[r1] = r2;
+		}
+	}
+
+	/**
+	 * Appends the labels of another table, which are renumbered by adding the
+	 * offset returned.
+	 *
+	 * @param other a table of labels for a later part of the image
+	 * @return the number to add to each label of the other table
+	 */
+	int append(LabelTable other) {
+		int offset = size - 1;
+		int count = other.size - 1;
+		if (size + count > parent.length) grow(size + count);
+		for (int i = 1; i <= count; i++) {
+			parent[size] = other.parent[i] + offset;
+			xMin[size] = other.xMin[i];
+			xMax[size] = other.xMax[i];
+			yMin[size] = other.yMin[i];
+			yMax[size] = other.yMax[i];
+			mass[size] = other.mass[i];
+			first[size] = other.first[i];
+			sumX[size] = other.sumX[i];
+			sumY[size] = other.sumY[i];
+			sumXX[size] = other.sumXX[i];
+			sumYY[size] = other.sumYY[i];
+			sumXY[size] = other.sumXY[i];
+			size++;
+		}
+		return offset;
+	}
+
+	/**
+	 * Gathers the bounds, mass and moments of every component at its root, and
+	 * points every label straight at its root. Labels only join smaller labels,
+	 * so working down from the largest label moves each one's values to its
+	 * parent before the parent is itself moved.
+	 */
+	void resolve() {
+		for (int i = size - 1; i > 0; i--) {
+			int p = parent[i];
+			if (p != i) {
+				if (xMax[i] > xMax[p])
+					xMax[p] = xMax[i];
+				if (xMin[i] < xMin[p])
+					xMin[p] = xMin[i];
+				if (yMax[i] > yMax[p])
+					yMax[p] = yMax[i];
+				if (yMin[i] < yMin[p])
+					yMin[p] = yMin[i];
+				mass[p] += mass[i];
+				if (first[i] < first[p])
+					first[p] = first[i];
+				sumX[p] += sumX[i];
+				sumY[p] += sumY[i];
+				sumXX[p] += sumXX[i];
+				sumYY[p] += sumYY[i];
+				sumXY[p] += sumXY[i];
+			}
+		}
+		for (int i = 1; i < size; i++) {
+			parent[i] = parent[parent[i]];
+		}
+	}
+
+	boolean isRoot(int label) {
+		return parent[label] == label;
+	}
+
+	/**
+	 * @return the root of a label, once resolved
+	 */
+	int root(int label) {
+		return parent[label];
+	}
+
+	int getXMin(int label) {
+		return xMin[label];
+	}
+
+	int getXMax(int label) {
+		return xMax[label];
+	}
+
+	int getYMin(int label) {
+		return yMin[label];
+	}
+
+	int getYMax(int label) {
+		return yMax[label];
+	}
+
+	int getMass(int label) {
+		return mass[label];
+	}
+
+	/**
+	 * @return the index of the first pixel of a label in raster order
+	 */
+	int getFirst(int label) {
+		return first[label];
+	}
+
+	long getSumX(int label) {
+		return sumX[label];
+	}
+
+	long getSumY(int label) {
+		return sumY[label];
+	}
+
+	long getSumXX(int label) {
+		return sumXX[label];
+	}
+
+	long getSumYY(int label) {
+		return sumYY[label];
+	}
+
+	long getSumXY(int label) {
+		return sumXY[label];
+	}
+
+	/**
+	 * Creates the blob of a component, once resolved.
+	 *
+	 * @param label the root of the component
+	 * @return the blob, with its centroid and shape
+	 */
+	BlobFinder.Blob createBlob(int label) {
+		return new BlobFinder.Blob(xMin[label], xMax[label], yMin[label], yMax[label], mass[label], sumX[label],
+				sumY[label], sumXX[label], sumYY[label], sumXY[label]);
+	}
+
+	/**
+	 * Lists the roots in the raster order of the first pixel of each component,
+	 * once resolved. When labels were made in raster order the roots are already
+	 * in that order; otherwise they are sorted.
+	 *
+	 * @return the roots
+	 */
+	int[] rootsInRasterOrder() {
+		int count = 0;
+		boolean ordered = true;
+		int last = -1;
+		for (int i = 1; i < size; i++) {
+			if (parent[i] == i) {
+				count++;
+				ordered &= first[i] > last;
+				last = first[i];
+			}
+		}
+
+		int[] roots = new int[count];
+		if (ordered) {
+			int r = 0;
+			for (int i = 1; i < size; i++) {
+				if (parent[i] == i)
+					roots[r++] = i;
+			}
+			return roots;
+		}
+
+		// sort on the first pixel, with the label in the low bits
+		long[] keys = new long[count];
+		int r = 0;
+		for (int i = 1; i < size; i++) {
+			if (parent[i] == i)
+				keys[r++] = ((long) first[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		for (r = 0; r < count; r++) {
+			roots[r] = (int) keys[r];
+		}
+		return roots;
+	}
+
+	/**
+	 * Numbers the components from 0 in the order of their roots, once resolved.
+	 *
+	 * @param roots the roots, as listed by rootsInRasterOrder
+	 * @return the number of the component of each label
+	 */
+	int[] numberComponents(int[] roots) {
+		int[] numbers = new int[size];
+		for (int r = 0; r < roots.length; r++) {
+			numbers[roots[r]] = r;
+		}
+		for (int i = 1; i < size; i++) {
+			numbers[i] = numbers[parent[i]];
+		}
+		return numbers;
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, 2 * parent.length);
+		parent = Arrays.copyOf(parent, capacity);
+		xMin = Arrays.copyOf(xMin, capacity);
+		xMax = Arrays.copyOf(xMax, capacity);
+		yMin = Arrays.copyOf(yMin, capacity);
+		yMax = Arrays.copyOf(yMax, capacity);
+		mass = Arrays.copyOf(mass, capacity);
+		first = Arrays.copyOf(first, capacity);
+		sumX = Arrays.copyOf(sumX, capacity);
+		sumY = Arrays.copyOf(sumY, capacity);
+		sumXX = Arrays.copyOf(sumXX, capacity);
+		sumYY = Arrays.copyOf(sumYY, capacity);
+		sumXY = Arrays.copyOf(sumXY, capacity);
+	}
+}
@@ -0,0 +1,437 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * The median filtering shared by MedianFilter, MedianFilterZeroFill and
+ * MedianFilterValueFill. The filters only decide which BorderPolicy the mask
+ * uses at the edges of the image.
+ * <p>
+ * In the default MARGINAL mode the median is taken separately for the red,
+ * green and blue planes (and alpha, if the image is not opaque). The PACKED
+ * mode reproduces the original filters, which sorted whole packed ARGB values
+ * so that the order was decided by the red byte and green and blue were
+ * dragged along with it.
+ * <p>
+ * Planes of 8 bit values are filtered with the constant time median of
+ * Perreault and Hebert. A histogram is kept for every column of the image and
+ * slid down one row at a time, and the histogram of the mask is slid along the
+ * row by adding the column that enters the mask and removing the one that
+ * leaves it. Each histogram is split into 16 coarse and 256 fine bins, and the
+ * fine bins of the mask are only brought up to date for the coarse bin holding
+ * the median. The cost per pixel does not depend on the mask size.
+ * <p>
+ * The median of packed values can not be taken from 8 bit histograms, so
+ * PACKED mode sorts the mask of colour images. For a greyscale image the order
+ * of the packed values is the order of the grey levels, so it is filtered with
+ * the histograms in either mode.
+ * <p>
+ * The 3x3 and 5x5 masks most jobs use are filtered with the sorting networks
+ * of MedianNetwork instead, in every mode.
+ *
+ * @author ryanorr
+ *
+ */
+public class MedianEngine {
+
+	/**
+	 * How the median of a colour pixel is chosen.
+	 */
+	public enum Mode {
+		/**
+		 * The median of each colour channel on its own.
+		 */
+		MARGINAL,
+
+		/**
+		 * The median of the packed ARGB values, as the filters originally worked.
+		 */
+		PACKED;
+
+		/**
+		 * Returns the mode named by a filter parameter, ignoring case.
+		 *
+		 * @param param the parameter from the file name, eg. "packed"
+		 * @return the mode
+		 * @throws IllegalArgumentException if no mode has that name
+		 */
+		public static Mode fromParam(String param) throws IllegalArgumentException {
+			return valueOf(param.toUpperCase());
+		}
+	}
+
+	private static final int COARSE_SHIFT = 4;
+
+	/**
+	 * Value of a pixel outside the image, given a bin of its own above every 8
+	 * bit value. It is returned by the histogram median when the median of the
+	 * mask is a pixel outside the image.
+	 */
+	private static final int OUTSIDE = 256;
+
+	// 16 coarse bins for the 8 bit values and one for OUTSIDE
+	private static final int COARSE = (OUTSIDE >> COARSE_SHIFT) + 1;
+	private static final int FINE = COARSE << COARSE_SHIFT;
+
+	private int width;
+	private int height;
+	private int radius;
+	private int size;
+	private BorderPolicy border;
+	private Mode mode;
+
+	// column histograms, one row of bins per padded column
+	private int[] colFine;
+	private int[] colCoarse;
+
+	// histogram of the mask
+	private int[] fine;
+	private int[] coarse;
+	private int[] synced;
+
+	/**
+	 * Constructs an engine for images of the given size.
+	 *
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 * @param maskSize the width of the square mask, an odd number
+	 * @param border how the mask treats pixels outside the image
+	 */
+	public MedianEngine(int width, int height, int maskSize, BorderPolicy border) {
+		if (maskSize < 1) throw new IllegalArgumentException("Mask size must be at least 1");
+		this.width = width;
+		this.height = height;
+		this.radius = maskSize / 2;
+		this.size = 2 * radius + 1;
+		this.border = border;
+		this.mode = Mode.MARGINAL;
+	}
+
+	/**
+	 * How the median of a colour pixel is chosen. The default is MARGINAL.
+	 *
+	 * @return the median mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Sets how the median of a colour pixel is chosen.
+	 *
+	 * @param mode the median mode
+	 */
+	public void setMode(Mode mode) {
+		if (mode == null) throw new IllegalArgumentException();
+		this.mode = mode;
+	}
+
+	/**
+	 * Median filters the packed ARGB pixels of an image.
+	 *
+	 * @param pixels the pixels of the image, row by row
+	 * @param dst receives the filtered pixels, may not be the pixels array
+	 */
+	public void filter(int[] pixels, int[] dst) {
+		if (isGrey(pixels)) {
+			int[] plane = new int[pixels.length];
+			for (int i = 0; i < pixels.length; i++) {
+				plane[i] = pixels[i] & 0xFF;
+			}
+			// a packed zero fill pixel sorts above every opaque pixel
+			planeMedian(plane, dst, mode == Mode.PACKED);
+			for (int i = 0; i < dst.length; i++) {
+				int v = dst[i];
+				dst[i] = v == OUTSIDE ? 0 : 0xFF000000 | (v << 16) | (v << 8) | v;
+			}
+		} else if (mode == Mode.PACKED) {
+			packedMedian(pixels, dst);
+		} else {
+			marginalMedian(pixels, dst);
+		}
+	}
+
+	/**
+	 * Takes the median of the red, green and blue planes one at a time, and of the
+	 * alpha plane if any pixel is not opaque.
+	 */
+	private void marginalMedian(int[] pixels, int[] dst) {
+		boolean opaque = true;
+		for (int i = 0; i < pixels.length && opaque; i++) {
+			opaque = (pixels[i] >>> 24) == 0xFF;
+		}
+
+		int[] plane = new int[pixels.length];
+		int[] median = new int[pixels.length];
+		Arrays.fill(dst, opaque ? 0xFF000000 : 0);
+		for (int shift = opaque ? 16 : 24; shift >= 0; shift -= 8) {
+			for (int i = 0; i < pixels.length; i++) {
+				plane[i] = (pixels[i] >>> shift) & 0xFF;
+			}
+			planeMedian(plane, median, false);
+			for (int i = 0; i < dst.length; i++) {
+				dst[i] |= median[i] << shift;
+			}
+		}
+	}
+
+	/**
+	 * Median of a plane of 8 bit values. Pixels outside the image are padded with
+	 * OUTSIDE when the border shrinks, and are then left out of the mask. A zero
+	 * border pads with OUTSIDE too when outsideAbove is set, so that they sort
+	 * above every value, and with zero otherwise.
+	 */
+	private void planeMedian(int[] plane, int[] dst, boolean outsideAbove) {
+		int outsideValue = border == BorderPolicy.SHRINK || outsideAbove ? OUTSIDE : 0;
+		if (MedianNetwork.supports(size)) {
+			networkMedian(plane, dst, outsideValue, false);
+		} else {
+			histogramMedian(plane, dst, outsideValue);
+		}
+	}
+
+	/**
+	 * Median of packed ARGB pixels, padded with zero.
+	 */
+	private void packedMedian(int[] pixels, int[] dst) {
+		if (MedianNetwork.supports(size)) {
+			networkMedian(pixels, dst, 0, true);
+		} else {
+			sortedMedian(pixels, dst);
+		}
+	}
+
+	/**
+	 * An image is greyscale if every pixel is opaque and has equal red, green and
+	 * blue values.
+	 */
+	private static boolean isGrey(int[] pixels) {
+		for (int i = 0; i < pixels.length; i++) {
+			int p = pixels[i];
+			int b = p & 0xFF;
+			if ((p >>> 24) != 0xFF || ((p >> 16) & 0xFF) != b || ((p >> 8) & 0xFF) != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sorts the mask around every pixel, as the filters have always done. The
+	 * slots of the mask left over by a shrinking border are zero when sorted.
+	 * <p>
+	 * Other borders read the mask from a padded copy of the image. A shrinking
+	 * border has no value to pad with, so the mask is clipped to the image
+	 * instead. Either way the innermost loop has no bounds checks.
+	 */
+	private void sortedMedian(int[] pixels, int[] dst) {
+		int area = size * size;
+		int[] buff = new int[area];
+		if (border == BorderPolicy.SHRINK) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					dst[x + y * width] = clippedMedian(pixels, x, y, buff, true);
+				}
+			}
+			return;
+		}
+
+		PaddedRaster padded = new PaddedRaster(pixels, width, height, radius, border, 0);
+		int[] data = padded.getData();
+		int stride = padded.getStride();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				// top left corner of the mask
+				int start = padded.index(x - radius, y - radius);
+				int count = 0;
+				for (int r = 0; r < size; r++) {
+					System.arraycopy(data, start + r * stride, buff, count, size);
+					count += size;
+				}
+				Arrays.sort(buff);
+				dst[x + y * width] = buff[area / 2];
+			}
+		}
+	}
+
+	/**
+	 * Median of the mask around one pixel, clipped to the image as a shrinking
+	 * border requires. Packed pixels are sorted with zeros in the slots left over,
+	 * as the filters have always done.
+	 */
+	private int clippedMedian(int[] values, int x, int y, int[] buff, boolean packed) {
+		int r0 = Math.max(y - radius, 0);
+		int r1 = Math.min(y + radius, height - 1);
+		int c0 = Math.max(x - radius, 0);
+		int c1 = Math.min(x + radius, width - 1);
+		int count = 0;
+		for (int r = r0; r <= r1; r++) {
+			int row = r * width;
+			for (int c = c0; c <= c1; c++) {
+				buff[count++] = values[row + c];
+			}
+		}
+		if (packed) {
+			Arrays.fill(buff, count, buff.length, 0);
+			Arrays.sort(buff);
+		} else {
+			Arrays.sort(buff, 0, count);
+		}
+		return buff[count / 2];
+	}
+
+	/**
+	 * Median of 3x3 or 5x5 masks with a sorting network, one row at a time. With a
+	 * shrinking border the masks that fit inside the image are read straight from
+	 * the values and only the pixels near the edge have their masks clipped.
+	 */
+	private void networkMedian(int[] values, int[] dst, int outsideValue, boolean packed) {
+		MedianNetwork network = new MedianNetwork(size, width);
+		if (border != BorderPolicy.SHRINK) {
+			PaddedRaster padded = new PaddedRaster(values, width, height, radius, border, outsideValue);
+			for (int y = 0; y < height; y++) {
+				network.row(padded.getData(), padded.getStride(), padded.index(-radius, y - radius), width, dst,
+						y * width);
+			}
+			return;
+		}
+
+		int inner = width - 2 * radius;
+		if (inner > 0) {
+			for (int y = radius; y < height - radius; y++) {
+				network.row(values, width, (y - radius) * width, inner, dst, y * width + radius);
+			}
+		}
+		int[] buff = new int[size * size];
+		for (int y = 0; y < height; y++) {
+			boolean edgeRow = y < radius || y >= height - radius || inner <= 0;
+			for (int x = 0; x < width; x++) {
+				if (edgeRow || x < radius || x >= width - radius) {
+					dst[x + y * width] = clippedMedian(values, x, y, buff, packed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constant time median of a plane of 8 bit values, read from a copy of the
+	 * plane padded with outsideValue where the border has no value of its own.
+	 */
+	private void histogramMedian(int[] plane, int[] dst, int outsideValue) {
+		PaddedRaster padded = new PaddedRaster(plane, width, height, radius, border, outsideValue);
+		int[] data = padded.getData();
+		int stride = padded.getStride();
+
+		int area = size * size;
+		colFine = new int[stride * FINE];
+		colCoarse = new int[stride * COARSE];
+		fine = new int[FINE];
+		coarse = new int[COARSE];
+		synced = new int[COARSE];
+
+		// the columns of output row y cover padded rows y to y + size - 1
+		for (int y = 0; y < size - 1; y++) {
+			for (int x = 0; x < stride; x++) {
+				updateColumn(x, data[y * stride + x], 1);
+			}
+		}
+
+		for (int y = 0; y < height; y++) {
+			int leaving = (y - 1) * stride;
+			int entering = (y + size - 1) * stride;
+			for (int x = 0; x < stride; x++) {
+				if (y > 0) {
+					updateColumn(x, data[leaving + x], -1);
+				}
+				updateColumn(x, data[entering + x], 1);
+			}
+
+			// the mask of output column x covers padded columns x to x + size - 1
+			Arrays.fill(coarse, 0);
+			for (int x = 0; x < size; x++) {
+				addColumn(x, 1);
+			}
+			// no fine bins are up to date at the start of a row
+			Arrays.fill(synced, -size - 1);
+
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				if (x > 0) {
+					addColumn(x - 1, -1);
+					addColumn(x + size - 1, 1);
+				}
+
+				int target = area / 2;
+				if (border == BorderPolicy.SHRINK) {
+					target = (area - coarse[COARSE - 1]) / 2;
+				}
+
+				int sum = 0;
+				int c = 0;
+				while (sum + coarse[c] <= target) {
+					sum += coarse[c];
+					c++;
+				}
+				syncFine(c, x);
+				int v = c << COARSE_SHIFT;
+				while (sum + fine[v] <= target) {
+					sum += fine[v];
+					v++;
+				}
+				dst[offset + x] = v;
+			}
+		}
+
+		colFine = null;
+		colCoarse = null;
+	}
+
+	/**
+	 * Adds (delta 1) or removes (delta -1) a value to the histogram of padded
+	 * column x.
+	 */
+	private void updateColumn(int x, int v, int delta) {
+		colFine[x * FINE + v] += delta;
+		colCoarse[x * COARSE + (v >> COARSE_SHIFT)] += delta;
+	}
+
+	/**
+	 * Adds or removes the coarse bins of padded column x to the histogram of the
+	 * mask.
+	 */
+	private void addColumn(int x, int delta) {
+		int base = x * COARSE;
+		for (int i = 0; i < COARSE; i++) {
+			coarse[i] += delta * colCoarse[base + i];
+		}
+	}
+
+	/**
+	 * Brings the fine bins under coarse bin c up to date for the mask of output
+	 * column x. The bins are rebuilt if the mask has moved on completely since
+	 * they were last used, otherwise only the columns passed over are applied.
+	 */
+	private void syncFine(int c, int x) {
+		int last = synced[c];
+		if (x - last >= size) {
+			Arrays.fill(fine, c << COARSE_SHIFT, (c + 1) << COARSE_SHIFT, 0);
+			for (int col = x; col < x + size; col++) {
+				addFineSegment(c, col, 1);
+			}
+		} else {
+			for (int j = last + 1; j <= x; j++) {
+				addFineSegment(c, j - 1, -1);
+				addFineSegment(c, j + size - 1, 1);
+			}
+		}
+		synced[c] = x;
+	}
+
+	private void addFineSegment(int c, int x, int delta) {
+		int start = c << COARSE_SHIFT;
+		int base = x * FINE;
+		for (int i = start; i < start + (1 << COARSE_SHIFT); i++) {
+			fine[i] += delta * colFine[base + i];
+		}
+	}
+}
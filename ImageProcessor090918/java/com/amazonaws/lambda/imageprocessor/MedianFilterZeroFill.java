@@ -1,7 +1,6 @@
 package com.amazonaws.lambda.imageprocessor;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
@@ -12,6 +11,7 @@ public class MedianFilterZeroFill extends Filter implements RequestHandler<S3Eve
 	//private AmazonS3 s3 = AmazonS3ClientBuilder.standard().build();
 	
 	private static int maskSize;
+	private static MedianEngine.Mode mode;
 	
 	@Override
 	public String handleRequest(S3Event event, Context context) {
@@ -64,48 +64,24 @@ public class MedianFilterZeroFill extends Filter implements RequestHandler<S3Eve
 			System.out.println(i + " : at this element : " + params[i]);
 		}
 		 maskSize = Integer.parseInt(params[1]);
+		// optional median mode between the mask size and the image type
+		mode = params.length > 3 ? MedianEngine.Mode.fromParam(params[2]) : MedianEngine.Mode.MARGINAL;
 	}
 	
 	@Override
 	public void setImageType() {
-		imageType = params[2];		
+		imageType = params[params.length - 1];		
 	}
 
 	@Override
 	public void filterOperation() {
-        /**
-         * Buff is a 2D square of odd size like 3x3, 5x5, 7x7, ...
-         * For simplicity storing it into 1D array.
-         */
-        int buff[];
-        
-        /** Median Filter operation */
-        for(int y = 0; y < srcHeight; y++){
-            for(int x = 0; x < srcWidth; x++){
-                buff = new int[maskSize * maskSize];
-                int i = 0;
-                for(int r = y - (maskSize / 2); r <= y + (maskSize / 2); r++){
-                    for(int c = x - (maskSize / 2); c <= x + (maskSize / 2); c++){
-                        if(r < 0 || r >= srcHeight || c < 0 || c >= srcWidth){
-                            /** Some portion of the mask is outside the image. */
-                            buff[i] = 0;
-                        }else{
-                            buff[i] = srcImage.getRGB(c, r);
-                        }
-                        i++;
-                    }
-                }
-                Arrays.sort(buff);
-                outputPixels[x+y*srcWidth] = buff[(maskSize*maskSize)/2];
-            }
-        }
-        /** Write the output pixels to the image pixels */
-        for(int y = 0; y < srcHeight; y++){
-            for(int x = 0; x < srcWidth; x++){
-            	srcImage.setRGB(x, y, outputPixels[x+y*srcWidth]);
-            }
-        }
-    }
-		
-}
+		int[] pixels = srcRaster.getARGB();
+
+		MedianEngine engine = new MedianEngine(srcWidth, srcHeight, maskSize, BorderPolicy.ZERO);
+		engine.setMode(mode);
+		engine.filter(pixels, outputPixels);
 
+		// Write the output pixels to the image pixels
+		super.writeOutputPixels();
+	}
+}
@@ -0,0 +1,240 @@
+package com.amazonaws.lambda.imageprocessor;
+
+/**
+ * Branch free median kernels for 3x3 and 5x5 masks, the sizes most jobs use.
+ * They replace sorting 9 or 25 values for every pixel with a fixed network of
+ * min and max operations.
+ * <p>
+ * A row is filtered in two steps. Every column of the mask rows is sorted once
+ * by a small network, and the sorted columns are then shared by all of the
+ * masks along the row that contain them. The median of a mask is selected from
+ * its sorted columns: for 3x3 as the median of the largest column minimum, the
+ * median column median and the smallest column maximum, and for 5x5 by an 85
+ * step network. The 5x5 network is Batcher's odd-even merge sort with every
+ * comparison that can not change the median of sorted columns removed; it was
+ * checked against all inputs of zeros and ones, which by the 0-1 principle
+ * covers every input.
+ * <p>
+ * Values are compared as signed ints, the same order Arrays.sort gives, so the
+ * kernels work on planes of 8 bit values and on packed ARGB pixels alike.
+ *
+ * @author ryanorr
+ *
+ */
+public class MedianNetwork {
+
+	private int size;
+
+	// the sorted columns of the current row, c0 holding the smallest values
+	private int[] c0;
+	private int[] c1;
+	private int[] c2;
+	private int[] c3;
+	private int[] c4;
+
+	/**
+	 * Whether a network exists for a mask size.
+	 *
+	 * @param size the width of the square mask
+	 * @return true for 3 and 5
+	 */
+	public static boolean supports(int size) {
+		return size == 3 || size == 5;
+	}
+
+	/**
+	 * Constructs a kernel for runs of up to count masks along a row.
+	 *
+	 * @param size the width of the square mask, 3 or 5
+	 * @param count the largest number of masks in a run
+	 */
+	public MedianNetwork(int size, int count) {
+		if (!supports(size)) throw new IllegalArgumentException("No median network for mask size " + size);
+		this.size = size;
+		int columns = count + size - 1;
+		c0 = new int[columns];
+		c1 = new int[columns];
+		c2 = new int[columns];
+		if (size == 5) {
+			c3 = new int[columns];
+			c4 = new int[columns];
+		}
+	}
+
+	/**
+	 * Finds the medians of a run of masks along a row.
+	 *
+	 * @param data the values, row by row
+	 * @param stride the number of values in a row of data
+	 * @param first the index in data of the top left value of the first mask
+	 * @param count the number of masks in the run, each one column to the right
+	 *            of the one before
+	 * @param dst receives the medians
+	 * @param dstOffset the index in dst of the first median
+	 */
+	public void row(int[] data, int stride, int first, int count, int[] dst, int dstOffset) {
+		if (size == 3) {
+			sortColumns3(data, stride, first, count + 2);
+			medians3(count, dst, dstOffset);
+		} else {
+			sortColumns5(data, stride, first, count + 4);
+			medians5(count, dst, dstOffset);
+		}
+	}
+
+	private void sortColumns3(int[] data, int stride, int first, int columns) {
+		for (int x = 0; x < columns; x++) {
+			int i = first + x;
+			int a = data[i];
+			int b = data[i + stride];
+			int c = data[i + 2 * stride];
+			int t = Math.min(a, b);
+			b = Math.max(a, b);
+			a = t;
+			t = Math.min(b, c);
+			c = Math.max(b, c);
+			b = Math.max(a, t);
+			a = Math.min(a, t);
+			c0[x] = a;
+			c1[x] = b;
+			c2[x] = c;
+		}
+	}
+
+	private void medians3(int count, int[] dst, int dstOffset) {
+		for (int x = 0; x < count; x++) {
+			int lo = Math.max(Math.max(c0[x], c0[x + 1]), c0[x + 2]);
+			int mid = median3(c1[x], c1[x + 1], c1[x + 2]);
+			int hi = Math.min(Math.min(c2[x], c2[x + 1]), c2[x + 2]);
+			dst[dstOffset + x] = median3(lo, mid, hi);
+		}
+	}
+
+	private static int median3(int a, int b, int c) {
+		return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+	}
+
+	private void sortColumns5(int[] data, int stride, int first, int columns) {
+		int t;
+		for (int x = 0; x < columns; x++) {
+			int i = first + x;
+			int p0 = data[i];
+			int p1 = data[i + stride];
+			int p2 = data[i + 2 * stride];
+			int p3 = data[i + 3 * stride];
+			int p4 = data[i + 4 * stride];
+			t = Math.min(p0, p1); p1 = Math.max(p0, p1); p0 = t;
+			t = Math.min(p3, p4); p4 = Math.max(p3, p4); p3 = t;
+			t = Math.min(p2, p4); p4 = Math.max(p2, p4); p2 = t;
+			t = Math.min(p2, p3); p3 = Math.max(p2, p3); p2 = t;
+			t = Math.min(p0, p3); p3 = Math.max(p0, p3); p0 = t;
+			t = Math.min(p0, p2); p2 = Math.max(p0, p2); p0 = t;
+			t = Math.min(p1, p4); p4 = Math.max(p1, p4); p1 = t;
+			t = Math.min(p1, p3); p3 = Math.max(p1, p3); p1 = t;
+			t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+			c0[x] = p0;
+			c1[x] = p1;
+			c2[x] = p2;
+			c3[x] = p3;
+			c4[x] = p4;
+		}
+	}
+
+	private void medians5(int count, int[] dst, int dstOffset) {
+		int t;
+		for (int x = 0; x < count; x++) {
+			// value r of column c of the mask is p(5c + r)
+			int p0 = c0[x]; int p1 = c1[x]; int p2 = c2[x]; int p3 = c3[x]; int p4 = c4[x];
+			int p5 = c0[x + 1]; int p6 = c1[x + 1]; int p7 = c2[x + 1]; int p8 = c3[x + 1]; int p9 = c4[x + 1];
+			int p10 = c0[x + 2]; int p11 = c1[x + 2]; int p12 = c2[x + 2]; int p13 = c3[x + 2]; int p14 = c4[x + 2];
+			int p15 = c0[x + 3]; int p16 = c1[x + 3]; int p17 = c2[x + 3]; int p18 = c3[x + 3]; int p19 = c4[x + 3];
+			int p20 = c0[x + 4]; int p21 = c1[x + 4]; int p22 = c2[x + 4]; int p23 = c3[x + 4]; int p24 = c4[x + 4];
+			t = Math.min(p4, p5); p5 = Math.max(p4, p5); p4 = t;
+			t = Math.min(p14, p15); p15 = Math.max(p14, p15); p14 = t;
+			t = Math.min(p5, p7); p7 = Math.max(p5, p7); p5 = t;
+			t = Math.min(p8, p10); p10 = Math.max(p8, p10); p8 = t;
+			t = Math.min(p9, p11); p11 = Math.max(p9, p11); p9 = t;
+			t = Math.min(p12, p14); p14 = Math.max(p12, p14); p12 = t;
+			t = Math.min(p5, p6); p6 = Math.max(p5, p6); p5 = t;
+			t = Math.min(p9, p10); p10 = Math.max(p9, p10); p9 = t;
+			t = Math.min(p13, p14); p14 = Math.max(p13, p14); p13 = t;
+			t = Math.min(p0, p4); p4 = Math.max(p0, p4); p0 = t;
+			t = Math.min(p1, p5); p5 = Math.max(p1, p5); p1 = t;
+			t = Math.min(p2, p6); p6 = Math.max(p2, p6); p2 = t;
+			t = Math.min(p8, p12); p12 = Math.max(p8, p12); p8 = t;
+			t = Math.min(p10, p14); p14 = Math.max(p10, p14); p10 = t;
+			t = Math.min(p11, p15); p15 = Math.max(p11, p15); p11 = t;
+			t = Math.min(p16, p20); p20 = Math.max(p16, p20); p16 = t;
+			t = Math.min(p17, p21); p21 = Math.max(p17, p21); p17 = t;
+			t = Math.min(p18, p22); p22 = Math.max(p18, p22); p18 = t;
+			t = Math.min(p19, p23); p23 = Math.max(p19, p23); p19 = t;
+			t = Math.min(p2, p4); p4 = Math.max(p2, p4); p2 = t;
+			t = Math.min(p3, p5); p5 = Math.max(p3, p5); p3 = t;
+			t = Math.min(p10, p12); p12 = Math.max(p10, p12); p10 = t;
+			t = Math.min(p11, p13); p13 = Math.max(p11, p13); p11 = t;
+			t = Math.min(p18, p20); p20 = Math.max(p18, p20); p18 = t;
+			t = Math.min(p19, p21); p21 = Math.max(p19, p21); p19 = t;
+			t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+			t = Math.min(p3, p4); p4 = Math.max(p3, p4); p3 = t;
+			t = Math.min(p5, p6); p6 = Math.max(p5, p6); p5 = t;
+			t = Math.min(p9, p10); p10 = Math.max(p9, p10); p9 = t;
+			t = Math.min(p11, p12); p12 = Math.max(p11, p12); p11 = t;
+			t = Math.min(p13, p14); p14 = Math.max(p13, p14); p13 = t;
+			t = Math.min(p17, p18); p18 = Math.max(p17, p18); p17 = t;
+			t = Math.min(p19, p20); p20 = Math.max(p19, p20); p19 = t;
+			t = Math.min(p21, p22); p22 = Math.max(p21, p22); p21 = t;
+			t = Math.min(p0, p8); p8 = Math.max(p0, p8); p0 = t;
+			t = Math.min(p1, p9); p9 = Math.max(p1, p9); p1 = t;
+			t = Math.min(p2, p10); p10 = Math.max(p2, p10); p2 = t;
+			t = Math.min(p3, p11); p11 = Math.max(p3, p11); p3 = t;
+			t = Math.min(p4, p12); p12 = Math.max(p4, p12); p4 = t;
+			t = Math.min(p5, p13); p13 = Math.max(p5, p13); p5 = t;
+			t = Math.min(p6, p14); p14 = Math.max(p6, p14); p6 = t;
+			p7 = Math.min(p7, p15);
+			t = Math.min(p4, p8); p8 = Math.max(p4, p8); p4 = t;
+			t = Math.min(p5, p9); p9 = Math.max(p5, p9); p5 = t;
+			t = Math.min(p6, p10); p10 = Math.max(p6, p10); p6 = t;
+			t = Math.min(p7, p11); p11 = Math.max(p7, p11); p7 = t;
+			t = Math.min(p20, p24); p24 = Math.max(p20, p24); p20 = t;
+			t = Math.min(p2, p4); p4 = Math.max(p2, p4); p2 = t;
+			t = Math.min(p3, p5); p5 = Math.max(p3, p5); p3 = t;
+			t = Math.min(p6, p8); p8 = Math.max(p6, p8); p6 = t;
+			t = Math.min(p7, p9); p9 = Math.max(p7, p9); p7 = t;
+			t = Math.min(p10, p12); p12 = Math.max(p10, p12); p10 = t;
+			t = Math.min(p11, p13); p13 = Math.max(p11, p13); p11 = t;
+			t = Math.min(p22, p24); p24 = Math.max(p22, p24); p22 = t;
+			t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+			t = Math.min(p3, p4); p4 = Math.max(p3, p4); p3 = t;
+			t = Math.min(p5, p6); p6 = Math.max(p5, p6); p5 = t;
+			t = Math.min(p7, p8); p8 = Math.max(p7, p8); p7 = t;
+			t = Math.min(p9, p10); p10 = Math.max(p9, p10); p9 = t;
+			t = Math.min(p11, p12); p12 = Math.max(p11, p12); p11 = t;
+			p13 = Math.min(p13, p14);
+			t = Math.min(p21, p22); p22 = Math.max(p21, p22); p21 = t;
+			t = Math.min(p23, p24); p24 = Math.max(p23, p24); p23 = t;
+			p16 = Math.max(p0, p16);
+			p17 = Math.max(p1, p17);
+			p18 = Math.max(p2, p18);
+			p19 = Math.max(p3, p19);
+			p20 = Math.max(p4, p20);
+			p21 = Math.max(p5, p21);
+			p6 = Math.min(p6, p22);
+			p7 = Math.min(p7, p23);
+			p8 = Math.min(p8, p24);
+			p16 = Math.max(p8, p16);
+			p17 = Math.max(p9, p17);
+			p10 = Math.min(p10, p18);
+			p11 = Math.min(p11, p19);
+			p12 = Math.min(p12, p20);
+			p13 = Math.min(p13, p21);
+			p10 = Math.max(p6, p10);
+			p11 = Math.max(p7, p11);
+			p12 = Math.min(p12, p16);
+			p13 = Math.min(p13, p17);
+			p12 = Math.max(p10, p12);
+			p11 = Math.min(p11, p13);
+			p12 = Math.max(p11, p12);
+			dst[dstOffset + x] = p12;
+		}
+	}
+}
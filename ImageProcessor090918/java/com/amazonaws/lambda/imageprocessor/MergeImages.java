@@ -1,12 +1,16 @@
 package com.amazonaws.lambda.imageprocessor;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.imageio.ImageIO;
 
 import com.amazonaws.services.lambda.runtime.Context;
@@ -62,8 +66,31 @@ public class MergeImages implements RequestHandler<S3Event, String> {
 			// make an array list of the sub-image keys
 			ArrayList<String> keys = image.getSubImages();
 
-			// check if all sub_images are present in bucket
-			CheckForSubImages checkForSubImages = new CheckForSubImages(keys, s3, srcBucket);
+			// an edge detector sweep leaves one image per threshold pair in place of the image
+			if (isEdgeDetectorSweep(keys)) {
+				keys = EdgeDetector.createSweepKeys(keys.get(0));
+				copySweepImages(keys);
+				return srcKey + ": OK";
+			}
+
+			// the blob detector leaves only the statistics of the image, which is never
+			// split for them
+			if (image.getFilterId().equals(S3Buckets.BLOB_DETECTOR)
+					&& BlobDetector.isStatsOnly(image.getFilterParams())) {
+				copyBlobStats(keys.get(0));
+				return srcKey + ": OK";
+			}
+
+			// check if all sub_images are present in bucket, with the sidecars of blob
+			// detector tiles
+			ArrayList<String> expected = new ArrayList<>(keys);
+			boolean blobTiles = image.getFilterId().equals(S3Buckets.BLOB_DETECTOR) && keys.size() > 1;
+			if (blobTiles) {
+				for (String key : keys) {
+					expected.add(key + BlobTile.SIDECAR_SUFFIX);
+				}
+			}
+			CheckForSubImages checkForSubImages = new CheckForSubImages(expected, s3, srcBucket);
 			Thread thread = new Thread(checkForSubImages);
 			thread.start();
 
@@ -92,8 +119,19 @@ public class MergeImages implements RequestHandler<S3Event, String> {
 			// get the subimages
 			getSubImages(keys, s3);
 
-			// merge the sub-images
-			merged = joinImages(subImages);
+			// merge the sub-images, joining up the edges that cross between edge tiles
+			// and the blobs that cross between blob tiles
+			if (image.getFilterId().equals(S3Buckets.EDGE_DETECTOR)) {
+				merged = joinEdgeTiles(keys, subImages);
+			} else if (blobTiles) {
+				ArrayList<BlobFinder.Blob> blobList = new ArrayList<BlobFinder.Blob>();
+				merged = joinBlobTiles(getBlobTiles(keys, s3), subImages, blobList);
+				System.out.printf("Found %d blobs:\n", blobList.size());
+				for (BlobFinder.Blob blob : blobList)
+					System.out.println(blob);
+			} else {
+				merged = joinImages(subImages);
+			}
 
 			writeMergedImageToInputStream();
 
@@ -164,6 +202,271 @@ public class MergeImages implements RequestHandler<S3Event, String> {
 		return result;
 	}
 
+	/**
+	 * Joins the tiles of an image split for the edge detector. Each tile holds
+	 * the edges found inside it and the candidate pixels that are not yet
+	 * joined to an edge, as made by CannyEdgeDetector.processTile. An edge only
+	 * meets a candidate where it crosses into another tile, so the edges are
+	 * followed through the candidates from the pixels along the sides of the
+	 * tiles. The candidates left over are not edges.
+	 * 
+	 * @param keys the keys of the tiles, which give where each tile belongs
+	 * @param tiles the images of the tiles, in the same order
+	 * @return an image of the edges of the whole image, white on black
+	 */
+	public static BufferedImage joinEdgeTiles(ArrayList<String> keys, BufferedImage[] tiles) {
+		Rectangle[] cores = new Rectangle[tiles.length];
+		int width = 0;
+		int height = 0;
+		for (int i = 0; i < tiles.length; i++) {
+			cores[i] = findEdgeTile(keys.get(i)).getCore();
+			if (tiles[i].getWidth() != cores[i].width || tiles[i].getHeight() != cores[i].height) {
+				throw new IllegalArgumentException("Tile " + keys.get(i) + " does not match its key");
+			}
+			width = Math.max(width, cores[i].x + cores[i].width);
+			height = Math.max(height, cores[i].y + cores[i].height);
+		}
+
+		// the grey levels of the tiles, placed in the whole image
+		byte[] levels = new byte[width * height];
+		int[] row = new int[width];
+		for (int i = 0; i < tiles.length; i++) {
+			Rectangle core = cores[i];
+			for (int y = 0; y < core.height; y++) {
+				tiles[i].getRaster().getSamples(0, y, core.width, 1, 0, row);
+				int offset = (core.y + y) * width + core.x;
+				for (int x = 0; x < core.width; x++) {
+					levels[offset + x] = toLevel(row[x]);
+				}
+			}
+		}
+
+		EdgeFollower follower = new EdgeFollower(levels, width, height);
+		for (Rectangle core : cores) {
+			int right = core.x + core.width - 1;
+			int bottom = core.y + core.height - 1;
+			for (int x = core.x; x <= right; x++) {
+				follower.follow(x, core.y);
+				follower.follow(x, bottom);
+			}
+			for (int y = core.y; y <= bottom; y++) {
+				follower.follow(core.x, y);
+				follower.follow(right, y);
+			}
+		}
+
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+		byte[] bits = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		int stride = (width + 7) / 8;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (levels[y * width + x] == EdgeFollower.EDGE) {
+					bits[y * stride + (x >> 3)] |= 0x80 >> (x & 7);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static EdgeTile findEdgeTile(String key) {
+		for (String param : key.split("_")) {
+			if (EdgeTile.isParam(param)) {
+				return EdgeTile.fromParam(param);
+			}
+		}
+		throw new IllegalArgumentException("No tile in " + key);
+	}
+
+	/**
+	 * Reads the grey level of a tile pixel. Tiles are lossless, so any level
+	 * other than those written by CannyEdgeDetector.processTile is an error.
+	 */
+	private static byte toLevel(int grey) {
+		if (grey == CannyEdgeDetector.TILE_EDGE) {
+			return EdgeFollower.EDGE;
+		} else if (grey == CannyEdgeDetector.TILE_CANDIDATE) {
+			return EdgeFollower.CANDIDATE;
+		} else if (grey == 0) {
+			return 0;
+		} else {
+			throw new IllegalArgumentException("Edge tile has grey level " + grey);
+		}
+	}
+
+	/**
+	 * Follows edges through candidate pixels, turning them into edges, with an
+	 * explicit stack as in CannyEdgeDetector.
+	 */
+	private static class EdgeFollower {
+		static final byte EDGE = 2;
+		static final byte CANDIDATE = 1;
+
+		private final byte[] levels;
+		private final int width;
+		private final int height;
+		private int[] stack = new int[1024];
+
+		EdgeFollower(byte[] levels, int width, int height) {
+			this.levels = levels;
+			this.width = width;
+			this.height = height;
+		}
+
+		void follow(int x, int y) {
+			int start = y * width + x;
+			if (levels[start] != EDGE) return;
+			int top = 0;
+			stack[top++] = start;
+			while (top > 0) {
+				int i = stack[--top];
+				int x1 = i % width;
+				int y1 = i / width;
+				for (int y2 = Math.max(0, y1 - 1); y2 <= Math.min(height - 1, y1 + 1); y2++) {
+					for (int x2 = Math.max(0, x1 - 1); x2 <= Math.min(width - 1, x1 + 1); x2++) {
+						int i2 = y2 * width + x2;
+						if (levels[i2] == CANDIDATE) {
+							levels[i2] = EDGE;
+							if (top == stack.length) stack = Arrays.copyOf(stack, 2 * top);
+							stack[top++] = i2;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Joins the tiles of an image split for the blob detector. Each tile image
+	 * holds the number of the component of each pixel, and its sidecar the
+	 * bounds, mass and first pixel of each component, as made by
+	 * BlobFinder.detectTile. The components that touch across the sides of the
+	 * tiles are joined, and the blobs are then listed and coloured in the same
+	 * way as BlobFinder.detectBlobs does for the whole image.
+	 * 
+	 * @param blobTiles the sidecars of the tiles
+	 * @param tiles the images of the tiles, in the same order
+	 * @param blobList filled with the blobs, as by BlobFinder.detectBlobs, if not
+	 *            null
+	 * @return an image of the coloured blobs of the whole image
+	 */
+	public static BufferedImage joinBlobTiles(BlobTile[] blobTiles, BufferedImage[] tiles,
+			List<BlobFinder.Blob> blobList) {
+		Rectangle[] cores = new Rectangle[tiles.length];
+		int width = 0;
+		int height = 0;
+		for (int i = 0; i < tiles.length; i++) {
+			cores[i] = blobTiles[i].getCore();
+			if (tiles[i].getWidth() != cores[i].width || tiles[i].getHeight() != cores[i].height) {
+				throw new IllegalArgumentException("Tile " + blobTiles[i].toParam() + " does not match its image");
+			}
+			width = Math.max(width, cores[i].x + cores[i].width);
+			height = Math.max(height, cores[i].y + cores[i].height);
+		}
+
+		// the components of each tile follow on from those of the tiles before it
+		LabelTable labels = new LabelTable(width);
+		int[] components = new int[width * height];
+		int[] row = new int[width];
+		for (int i = 0; i < tiles.length; i++) {
+			BlobTile blobTile = blobTiles[i];
+			int offset = labels.size() - 1;
+			for (int c = 0; c < blobTile.getComponentCount(); c++) {
+				int label = labels.add(blobTile.getXMin(c), blobTile.getXMax(c), blobTile.getYMin(c),
+						blobTile.getYMax(c), blobTile.getMass(c), blobTile.getYMin(c) * width + blobTile.getFirstX(c));
+				labels.addMoments(label, blobTile.getSumX(c), blobTile.getSumY(c), blobTile.getSumXX(c),
+						blobTile.getSumYY(c), blobTile.getSumXY(c));
+			}
+			Rectangle core = cores[i];
+			for (int y = 0; y < core.height; y++) {
+				tiles[i].getRGB(0, y, core.width, 1, row, 0, core.width);
+				int ptr = (core.y + y) * width + core.x;
+				for (int x = 0; x < core.width; x++) {
+					int component = row[x] & BlobTile.MAX_COMPONENTS;
+					if (component > blobTile.getComponentCount()) {
+						throw new IllegalArgumentException("Tile " + blobTile.toParam() + " does not match its sidecar");
+					}
+					components[ptr + x] = component == 0 ? 0 : offset + component;
+				}
+			}
+		}
+
+		// join the components across the top and left sides of each tile, which
+		// between them meet every pixel of the tiles above and to the left
+		for (Rectangle core : cores) {
+			if (core.y > 0) {
+				for (int x = core.x; x < core.x + core.width; x++) {
+					int label = components[core.y * width + x];
+					if (label == 0)
+						continue;
+					int above = (core.y - 1) * width;
+					for (int x2 = Math.max(0, x - 1); x2 <= Math.min(width - 1, x + 1); x2++) {
+						if (components[above + x2] != 0)
+							labels.union(label, components[above + x2]);
+					}
+				}
+			}
+			if (core.x > 0) {
+				for (int y = core.y; y < core.y + core.height; y++) {
+					int label = components[y * width + core.x];
+					if (label == 0)
+						continue;
+					for (int y2 = Math.max(0, y - 1); y2 <= Math.min(height - 1, y + 1); y2++) {
+						int left = y2 * width + core.x - 1;
+						if (components[left] != 0)
+							labels.union(label, components[left]);
+					}
+				}
+			}
+		}
+
+		// Blobs that butt against corners are ignored
+		int[] cornerLabels = new int[4];
+		int[] corners = { 0, width - 1, (width * height) - width, (width * height) - 1 };
+		for (int c = 0; c < corners.length; c++) {
+			int label = components[corners[c]];
+			cornerLabels[c] = label == 0 ? 0 : labels.find(label);
+		}
+
+		labels.resolve();
+		int[] roots = labels.rootsInRasterOrder();
+		if (blobList != null) {
+			for (int r = roots.length - 1; r >= 0; r--) {
+				int i = roots[r];
+				if (i == cornerLabels[0] || i == cornerLabels[1] || i == cornerLabels[2] || i == cornerLabels[3])
+					continue;
+				blobList.add(labels.createBlob(i));
+			}
+		}
+
+		byte[] dstData = new byte[width * height * 3];
+		int[] colours = labels.numberComponents(roots);
+		for (int ptr = 0; ptr < components.length; ptr++) {
+			if (components[ptr] != 0) {
+				byte[] colour = BlobFinder.COLOUR_ARRAY[colours[components[ptr]] % BlobFinder.COLOUR_ARRAY.length];
+				dstData[ptr * 3] = colour[0];
+				dstData[ptr * 3 + 1] = colour[1];
+				dstData[ptr * 3 + 2] = colour[2];
+			}
+		}
+		return new RGBFrame(width, height, dstData).getImage();
+	}
+
+	/**
+	 * Reads the sidecars of the tiles of an image split for the blob detector.
+	 * 
+	 * @param keys the keys of the tile images
+	 * @param s3 the client to read them with
+	 * @return the sidecars, in the same order
+	 */
+	public static BlobTile[] getBlobTiles(ArrayList<String> keys, AmazonS3 s3) throws IOException {
+		BlobTile[] blobTiles = new BlobTile[keys.size()];
+		for (int loop = 0; loop < keys.size(); loop++) {
+			S3Object s3Object = s3.getObject(new GetObjectRequest(srcBucket, keys.get(loop) + BlobTile.SIDECAR_SUFFIX));
+			blobTiles[loop] = JsonOperations.jsonFileToBlobTile(s3Object);
+		}
+		return blobTiles;
+	}
+
 	public static void getSubImages(ArrayList<String> keys, AmazonS3 s3) throws IOException {
 		// get the image files by looping through and getting their keys
 		System.out.println("\n Sub images about to be processed: ");
@@ -195,6 +498,71 @@ public class MergeImages implements RequestHandler<S3Event, String> {
 		System.out.println("Merged " + image.getSubImages() + " and saved to " + DST_BUCKET + "/" + dstKey);
 	}
 	
+	/**
+	 * Checks if the image was given to the edge detector with more than one pair
+	 * of thresholds. Edge detection never splits the image, so there is a single
+	 * key.
+	 * 
+	 * @param keys the sub-image keys from the json file
+	 * @return true if the edge detector produced an image for each threshold pair
+	 */
+	public static boolean isEdgeDetectorSweep(ArrayList<String> keys) {
+		return image.getFilterId().equals(S3Buckets.EDGE_DETECTOR) && keys.size() == 1
+				&& EdgeDetector.createSweepKeys(keys.get(0)).size() > 1;
+	}
+
+	/**
+	 * Waits for every image of an edge detector sweep and copies each to the
+	 * destination bucket, named after the original image and its thresholds.
+	 * 
+	 * @param keys the keys of the images, one for each threshold pair
+	 */
+	public void copySweepImages(ArrayList<String> keys) {
+		CheckForSubImages checkForSubImages = new CheckForSubImages(keys, s3, srcBucket);
+		checkForSubImages.run();
+		for (String key : keys) {
+			String sweepDstKey = createFileNameWithThresholds(key);
+			s3.copyObject(srcBucket, key, DST_BUCKET, sweepDstKey);
+			System.out.println("Copied " + srcBucket + "/" + key + " to " + DST_BUCKET + "/" + sweepDstKey);
+		}
+	}
+
+	/**
+	 * Waits for the statistics the blob detector writes in place of an image it
+	 * has not split, and copies them to the destination bucket beside where the
+	 * image would go.
+	 * 
+	 * @param key the key of the image given to the blob detector
+	 */
+	public void copyBlobStats(String key) {
+		ArrayList<String> statsKeys = new ArrayList<>();
+		statsKeys.add(key + BlobDetector.STATS_SUFFIX);
+		CheckForSubImages checkForSubImages = new CheckForSubImages(statsKeys, s3, srcBucket);
+		checkForSubImages.run();
+		String statsDstKey = dstKey + BlobDetector.STATS_SUFFIX;
+		s3.copyObject(srcBucket, statsKeys.get(0), DST_BUCKET, statsDstKey);
+		System.out.println("Copied " + srcBucket + "/" + statsKeys.get(0) + " to " + DST_BUCKET + "/" + statsDstKey);
+	}
+
+	/**
+	 * Creates the destination file name for one image of an edge detector sweep,
+	 * with the low and high thresholds added before the file extension, eg.
+	 * edgedetector-photo-1-3.jpg.
+	 * 
+	 * @param sweepKey the key of the image for one threshold pair
+	 * @return the destination file name
+	 */
+	public static String createFileNameWithThresholds(String sweepKey) {
+		String[] params = sweepKey.split("_");
+		String fileName = createFileNameWithFilterUsed();
+		String thresholds = "-" + params[1] + "-" + params[2];
+		int extension = fileName.lastIndexOf('.');
+		if (extension < 0) {
+			return fileName + thresholds;
+		}
+		return fileName.substring(0, extension) + thresholds + fileName.substring(extension);
+	}
+	
 	public static String createFileNameWithFilterUsed() {
 		String prefix = S3Buckets.getPrefixForFileName(image.getFilterId());
 		//may be original file name instead
@@ -0,0 +1,110 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * A copy of a plane of pixel values with a halo of radius pixels around it,
+ * filled according to a BorderPolicy. The halo is built once, so a mask of up
+ * to 2 * radius + 1 pixels can be read anywhere over the image without any
+ * bounds checks.
+ *
+ * @author ryanorr
+ *
+ */
+public class PaddedRaster {
+
+	private int[] data;
+	private int width;
+	private int height;
+	private int radius;
+	private int stride;
+
+	/**
+	 * Builds the padded copy of a plane.
+	 *
+	 * @param src the values of the plane, row by row
+	 * @param width the width of the plane
+	 * @param height the height of the plane
+	 * @param radius the width of the halo
+	 * @param border how the halo is filled
+	 * @param outside the value of halo pixels that have no source pixel under the
+	 *            border policy, eg. zero for BorderPolicy.ZERO
+	 */
+	public PaddedRaster(int[] src, int width, int height, int radius, BorderPolicy border, int outside) {
+		this.width = width;
+		this.height = height;
+		this.radius = radius;
+		this.stride = width + 2 * radius;
+		this.data = new int[stride * (height + 2 * radius)];
+
+		// where each padded column reads from, -1 for outside
+		int[] columns = new int[stride];
+		for (int x = 0; x < stride; x++) {
+			columns[x] = border.sourceIndex(x - radius, width);
+		}
+
+		for (int y = 0; y < height + 2 * radius; y++) {
+			int row = border.sourceIndex(y - radius, height);
+			int dst = y * stride;
+			if (row < 0) {
+				Arrays.fill(data, dst, dst + stride, outside);
+				continue;
+			}
+			int srcRow = row * width;
+			for (int x = 0; x < radius; x++) {
+				data[dst + x] = columns[x] < 0 ? outside : src[srcRow + columns[x]];
+			}
+			System.arraycopy(src, srcRow, data, dst + radius, width);
+			for (int x = radius + width; x < stride; x++) {
+				data[dst + x] = columns[x] < 0 ? outside : src[srcRow + columns[x]];
+			}
+		}
+	}
+
+	/**
+	 * @return the padded values, row by row, stride values to a row
+	 */
+	public int[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return the number of values in a padded row
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return the width of the halo
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @return the width of the image without the halo
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the image without the halo
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the index into the padded data of an image pixel. Indices from -radius
+	 * up to width + radius - 1 (and the same for height) are inside the halo.
+	 *
+	 * @param x the column of the pixel in the image
+	 * @param y the row of the pixel in the image
+	 * @return the index of the pixel in getData()
+	 */
+	public int index(int x, int y) {
+		return (y + radius) * stride + x + radius;
+	}
+}
@@ -0,0 +1,555 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Gives the filters direct access to the pixels of a BufferedImage. The
+ * DataBuffer behind the image is unwrapped once, so the filters can work on
+ * primitive arrays instead of calling getRGB and setRGB for every pixel, which
+ * goes through the ColorModel each time.
+ * <p>
+ * The common image layouts are read and written straight from the backing
+ * array. Any other layout falls back to a single bulk getRGB and setRGB call.
+ * Indexed colour, 16-bit RGB and 16 bits per channel RGB images are recognised
+ * so that their backing arrays can be read directly, but are converted to and
+ * from ARGB through getRGB and setRGB.
+ * <p>
+ * The luminance of any image can also be read a row at a time, straight from
+ * the backing array for every recognised layout, and the mean of the colour
+ * channels thresholded in a single pass.
+ *
+ * @author ryanorr
+ *
+ */
+public class RasterAccess {
+
+	/**
+	 * The weights of red, green and blue in the luminance, 0.299, 0.587 and 0.114
+	 * in 16 bit fixed point.
+	 */
+	private static final int LUMINANCE_RED = 19595;
+	private static final int LUMINANCE_GREEN = 38470;
+	private static final int LUMINANCE_BLUE = 7471;
+
+	/**
+	 * The layouts of pixel data that can be accessed directly.
+	 */
+	public enum Layout {
+		/** One int per pixel, packed ARGB. */
+		INT_ARGB,
+		/** One int per pixel, packed RGB with the alpha byte ignored. */
+		INT_RGB,
+		/** Three bytes per pixel, in blue, green, red order. */
+		BYTE_BGR,
+		/** Four bytes per pixel, in alpha, blue, green, red order. */
+		BYTE_ABGR,
+		/** One byte per pixel, grey level. */
+		BYTE_GRAY,
+		/** One unsigned short per pixel, grey level. */
+		USHORT_GRAY,
+		/** One byte per pixel, an index into the IndexColorModel of the image. */
+		BYTE_INDEXED,
+		/** One unsigned short per pixel, packed 5-6-5 RGB. */
+		USHORT_565_RGB,
+		/** One unsigned short per pixel, packed 5-5-5 RGB. */
+		USHORT_555_RGB,
+		/** Three unsigned shorts per pixel, in red, green, blue order. */
+		USHORT_RGB,
+		/** Four unsigned shorts per pixel, in red, green, blue, alpha order. */
+		USHORT_RGBA,
+		/** Anything else, only accessible through getRGB and setRGB. */
+		OTHER
+	}
+
+	private BufferedImage image;
+	private WritableRaster raster;
+	private Layout layout;
+	private int width;
+	private int height;
+
+	private int[] ints;
+	private byte[] bytes;
+	private short[] shorts;
+	private int[] luminanceTable;
+	private int[] row;
+
+	/**
+	 * Unwraps the pixel data of an image.
+	 *
+	 * @param image the image to access
+	 */
+	public RasterAccess(BufferedImage image) {
+		this.image = image;
+		this.raster = image.getRaster();
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.layout = findLayout();
+	}
+
+	private Layout findLayout() {
+		DataBuffer buffer = raster.getDataBuffer();
+		// sub-images and unusual rasters do not start at the front of the buffer
+		if (raster.getParent() != null || buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+			return Layout.OTHER;
+		}
+		int pixels = width * height;
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_RGB:
+			ints = ((DataBufferInt) buffer).getData();
+			if (ints.length != pixels) break;
+			return image.getType() == BufferedImage.TYPE_INT_ARGB ? Layout.INT_ARGB : Layout.INT_RGB;
+		case BufferedImage.TYPE_3BYTE_BGR:
+			bytes = ((DataBufferByte) buffer).getData();
+			if (bytes.length != pixels * 3) break;
+			return Layout.BYTE_BGR;
+		case BufferedImage.TYPE_4BYTE_ABGR:
+			bytes = ((DataBufferByte) buffer).getData();
+			if (bytes.length != pixels * 4) break;
+			return Layout.BYTE_ABGR;
+		case BufferedImage.TYPE_BYTE_GRAY:
+			bytes = ((DataBufferByte) buffer).getData();
+			if (bytes.length != pixels) break;
+			return Layout.BYTE_GRAY;
+		case BufferedImage.TYPE_USHORT_GRAY:
+			shorts = ((DataBufferUShort) buffer).getData();
+			if (shorts.length != pixels) break;
+			return Layout.USHORT_GRAY;
+		case BufferedImage.TYPE_BYTE_INDEXED:
+			bytes = ((DataBufferByte) buffer).getData();
+			if (bytes.length != pixels) break;
+			return Layout.BYTE_INDEXED;
+		case BufferedImage.TYPE_USHORT_565_RGB:
+		case BufferedImage.TYPE_USHORT_555_RGB:
+			shorts = ((DataBufferUShort) buffer).getData();
+			if (shorts.length != pixels) break;
+			return image.getType() == BufferedImage.TYPE_USHORT_565_RGB ? Layout.USHORT_565_RGB : Layout.USHORT_555_RGB;
+		case BufferedImage.TYPE_CUSTOM:
+			// 16 bit PNGs are read as interleaved unsigned shorts
+			return findCustomLayout(buffer, pixels);
+		default:
+			break;
+		}
+		ints = null;
+		bytes = null;
+		shorts = null;
+		return Layout.OTHER;
+	}
+
+	private Layout findCustomLayout(DataBuffer buffer, int pixels) {
+		SampleModel model = raster.getSampleModel();
+		if (!(buffer instanceof DataBufferUShort) || !(model instanceof PixelInterleavedSampleModel)) {
+			return Layout.OTHER;
+		}
+		PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+		int bands = interleaved.getNumBands();
+		int[] offsets = interleaved.getBandOffsets();
+		if (bands < 3 || bands > 4 || interleaved.getPixelStride() != bands
+				|| interleaved.getScanlineStride() != width * bands) {
+			return Layout.OTHER;
+		}
+		for (int band = 0; band < bands; band++) {
+			if (offsets[band] != band) return Layout.OTHER;
+		}
+		shorts = ((DataBufferUShort) buffer).getData();
+		if (shorts.length != pixels * bands) {
+			shorts = null;
+			return Layout.OTHER;
+		}
+		return bands == 3 ? Layout.USHORT_RGB : Layout.USHORT_RGBA;
+	}
+
+	/**
+	 * @return the layout of the pixel data
+	 */
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @return the width of the image in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the image in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the backing array of an INT_ARGB or INT_RGB image, otherwise null
+	 */
+	public int[] getInts() {
+		return ints;
+	}
+
+	/**
+	 * @return the backing array of a BYTE_BGR, BYTE_ABGR, BYTE_GRAY or
+	 *         BYTE_INDEXED image, otherwise null
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the backing array of a USHORT_GRAY, USHORT_565_RGB,
+	 *         USHORT_555_RGB, USHORT_RGB or USHORT_RGBA image, otherwise null
+	 */
+	public short[] getShorts() {
+		return shorts;
+	}
+
+	/**
+	 * Returns the pixels of the image as packed ARGB values, row by row. For an
+	 * INT_ARGB image this is the backing array itself and must not be changed.
+	 * Grey levels are copied into each colour channel as they are stored, without
+	 * the colour space conversion getRGB applies.
+	 *
+	 * @return the ARGB pixels
+	 */
+	public int[] getARGB() {
+		int pixels = width * height;
+		int[] argb;
+		switch (layout) {
+		case INT_ARGB:
+			return ints;
+		case INT_RGB:
+			argb = new int[pixels];
+			for (int i = 0; i < pixels; i++) {
+				argb[i] = 0xFF000000 | ints[i];
+			}
+			return argb;
+		case BYTE_BGR:
+			argb = new int[pixels];
+			for (int i = 0, j = 0; i < pixels; i++, j += 3) {
+				argb[i] = 0xFF000000 | ((bytes[j + 2] & 0xFF) << 16) | ((bytes[j + 1] & 0xFF) << 8) | (bytes[j] & 0xFF);
+			}
+			return argb;
+		case BYTE_ABGR:
+			argb = new int[pixels];
+			for (int i = 0, j = 0; i < pixels; i++, j += 4) {
+				argb[i] = ((bytes[j] & 0xFF) << 24) | ((bytes[j + 3] & 0xFF) << 16) | ((bytes[j + 2] & 0xFF) << 8)
+						| (bytes[j + 1] & 0xFF);
+			}
+			return argb;
+		case BYTE_GRAY:
+			argb = new int[pixels];
+			for (int i = 0; i < pixels; i++) {
+				argb[i] = 0xFF000000 | ((bytes[i] & 0xFF) * 0x010101);
+			}
+			return argb;
+		case USHORT_GRAY:
+			argb = new int[pixels];
+			for (int i = 0; i < pixels; i++) {
+				argb[i] = 0xFF000000 | (((shorts[i] & 0xFFFF) >>> 8) * 0x010101);
+			}
+			return argb;
+		default:
+			return image.getRGB(0, 0, width, height, null, 0, width);
+		}
+	}
+
+	/**
+	 * Writes packed ARGB pixels back to the image with a single bulk
+	 * setDataElements call. Grey images take the luminance of each pixel, which is
+	 * exact for pixels with equal colour channels.
+	 *
+	 * @param argb the pixels to write, row by row
+	 */
+	public void setARGB(int[] argb) {
+		int pixels = width * height;
+		switch (layout) {
+		case INT_ARGB:
+			raster.setDataElements(0, 0, width, height, argb);
+			break;
+		case INT_RGB: {
+			int[] out = new int[pixels];
+			for (int i = 0; i < pixels; i++) {
+				out[i] = argb[i] & 0xFFFFFF;
+			}
+			raster.setDataElements(0, 0, width, height, out);
+			break;
+		}
+		case BYTE_BGR: {
+			// data elements are in band order, red first
+			byte[] out = new byte[pixels * 3];
+			for (int i = 0, j = 0; i < pixels; i++, j += 3) {
+				int p = argb[i];
+				out[j] = (byte) (p >> 16);
+				out[j + 1] = (byte) (p >> 8);
+				out[j + 2] = (byte) p;
+			}
+			raster.setDataElements(0, 0, width, height, out);
+			break;
+		}
+		case BYTE_ABGR: {
+			byte[] out = new byte[pixels * 4];
+			for (int i = 0, j = 0; i < pixels; i++, j += 4) {
+				int p = argb[i];
+				out[j] = (byte) (p >> 16);
+				out[j + 1] = (byte) (p >> 8);
+				out[j + 2] = (byte) p;
+				out[j + 3] = (byte) (p >>> 24);
+			}
+			raster.setDataElements(0, 0, width, height, out);
+			break;
+		}
+		case BYTE_GRAY: {
+			byte[] out = new byte[pixels];
+			for (int i = 0; i < pixels; i++) {
+				out[i] = (byte) grey(argb[i]);
+			}
+			raster.setDataElements(0, 0, width, height, out);
+			break;
+		}
+		case USHORT_GRAY: {
+			short[] out = new short[pixels];
+			for (int i = 0; i < pixels; i++) {
+				out[i] = (short) (grey(argb[i]) * 0x0101);
+			}
+			raster.setDataElements(0, 0, width, height, out);
+			break;
+		}
+		default:
+			image.setRGB(0, 0, width, height, argb, 0, width);
+			break;
+		}
+	}
+
+	/**
+	 * Reads the luminance of a row of the image, from 0 to 255. Colour pixels are
+	 * weighted 0.299, 0.587 and 0.114 in fixed point, so no floating point is
+	 * needed; about one colour in two thousand rounds to a level one away from
+	 * floating point weights. Grey images give their grey levels as stored. Indexed
+	 * and 16-bit RGB pixels are read through a table of the luminance of every
+	 * pixel value, and any other layout is converted with getRGB.
+	 *
+	 * @param y the row to read
+	 * @param dst the array to write the luminance to
+	 * @param offset the index in dst of the first pixel of the row
+	 */
+	public void getLuminance(int y, int[] dst, int offset) {
+		int start = y * width;
+		switch (layout) {
+		case INT_ARGB:
+		case INT_RGB:
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = luminance(ints[start + x]);
+			}
+			break;
+		case BYTE_BGR:
+			for (int x = 0, j = start * 3; x < width; x++, j += 3) {
+				dst[offset + x] = luminance(bytes[j + 2] & 0xFF, bytes[j + 1] & 0xFF, bytes[j] & 0xFF);
+			}
+			break;
+		case BYTE_ABGR:
+			for (int x = 0, j = start * 4; x < width; x++, j += 4) {
+				dst[offset + x] = luminance(bytes[j + 3] & 0xFF, bytes[j + 2] & 0xFF, bytes[j + 1] & 0xFF);
+			}
+			break;
+		case BYTE_GRAY:
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = bytes[start + x] & 0xFF;
+			}
+			break;
+		case USHORT_GRAY:
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = (shorts[start + x] & 0xFFFF) >> 8;
+			}
+			break;
+		case BYTE_INDEXED: {
+			int[] table = getLuminanceTable(256);
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = table[bytes[start + x] & 0xFF];
+			}
+			break;
+		}
+		case USHORT_565_RGB:
+		case USHORT_555_RGB: {
+			int[] table = getLuminanceTable(0x10000);
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = table[shorts[start + x] & 0xFFFF];
+			}
+			break;
+		}
+		case USHORT_RGB:
+		case USHORT_RGBA: {
+			// the 16 bit channels give an extra 8 bits of precision to round
+			int stride = layout == Layout.USHORT_RGB ? 3 : 4;
+			for (int x = 0, j = start * stride; x < width; x++, j += stride) {
+				long sum = (long) LUMINANCE_RED * (shorts[j] & 0xFFFF) + (long) LUMINANCE_GREEN * (shorts[j + 1] & 0xFFFF)
+						+ (long) LUMINANCE_BLUE * (shorts[j + 2] & 0xFFFF);
+				dst[offset + x] = (int) ((sum + 0x800000) >> 24);
+			}
+			break;
+		}
+		default:
+			if (row == null) {
+				row = new int[width];
+			}
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = luminance(row[x]);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Thresholds the mean of the red, green and blue channels of every pixel in
+	 * a single pass, straight from the backing array for the common layouts, so
+	 * no copy of the image is made. Pixels with alpha are taken as if drawn over
+	 * black. Grey images use their grey levels as stored, 16 bit grey levels are
+	 * cut to 8 bits, and any other layout is read a row at a time with getRGB.
+	 *
+	 * @param threshold the mean a pixel must be above to be set
+	 * @param dst one byte per pixel, set to 0xFF above the threshold and to 0
+	 *            otherwise
+	 */
+	public void thresholdMean(int threshold, byte[] dst) {
+		if (dst.length != width * height) throw new IllegalArgumentException();
+		for (int y = 0; y < height; y++) {
+			thresholdMean(y, threshold, dst, y * width);
+		}
+	}
+
+	/**
+	 * Sets the pixels of a plane whose mean of the red, green and blue channels
+	 * is at or below a threshold, the dark pixels that the blob detector looks
+	 * for, in the same way as thresholdMean.
+	 *
+	 * @param threshold the mean a pixel must be at or below to be set
+	 * @param dst a plane the size of the image, whose pixels are all written
+	 */
+	public void findDark(int threshold, BinaryPlane dst) {
+		if (dst.getWidth() != width || dst.getHeight() != height) throw new IllegalArgumentException();
+		byte[] mono = new byte[width];
+		long[] words = dst.getWords();
+		int wordsPerRow = dst.getWordsPerRow();
+		for (int y = 0; y < height; y++) {
+			thresholdMean(y, threshold, mono, 0);
+			int start = y * wordsPerRow;
+			for (int w = 0; w < wordsPerRow; w++) {
+				long word = 0;
+				int end = Math.min(width, (w + 1) << 6);
+				for (int x = w << 6; x < end; x++) {
+					if (mono[x] == 0)
+						word |= 1L << x;
+				}
+				words[start + w] = word;
+			}
+		}
+	}
+
+	/**
+	 * Thresholds the mean of the colour channels of one row.
+	 */
+	private void thresholdMean(int y, int threshold, byte[] dst, int offset) {
+		// the mean of three channels is above the threshold when their sum is
+		// above three times the threshold, plus the two that the mean rounds down
+		int sum = 3 * threshold + 2;
+		int start = y * width;
+		switch (layout) {
+		case INT_RGB:
+			for (int x = 0; x < width; x++) {
+				int p = ints[start + x];
+				dst[offset + x] = ((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF) > sum ? (byte) 0xFF : 0;
+			}
+			break;
+		case BYTE_BGR:
+			for (int x = 0, j = start * 3; x < width; x++, j += 3) {
+				dst[offset + x] = (bytes[j] & 0xFF) + (bytes[j + 1] & 0xFF) + (bytes[j + 2] & 0xFF) > sum ? (byte) 0xFF
+						: 0;
+			}
+			break;
+		case BYTE_ABGR:
+			for (int x = 0, j = start * 4; x < width; x++, j += 4) {
+				int alpha = bytes[j] & 0xFF;
+				int total = overBlack(bytes[j + 1] & 0xFF, alpha) + overBlack(bytes[j + 2] & 0xFF, alpha)
+						+ overBlack(bytes[j + 3] & 0xFF, alpha);
+				dst[offset + x] = total > sum ? (byte) 0xFF : 0;
+			}
+			break;
+		case BYTE_GRAY:
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = (bytes[start + x] & 0xFF) > threshold ? (byte) 0xFF : 0;
+			}
+			break;
+		case USHORT_GRAY:
+			for (int x = 0; x < width; x++) {
+				dst[offset + x] = ((shorts[start + x] & 0xFFFF) >> 8) > threshold ? (byte) 0xFF : 0;
+			}
+			break;
+		default: {
+			int[] argb;
+			if (layout == Layout.INT_ARGB) {
+				argb = ints;
+			} else {
+				if (row == null) {
+					row = new int[width];
+				}
+				image.getRGB(0, y, width, 1, row, 0, width);
+				argb = row;
+				start = 0;
+			}
+			for (int x = 0; x < width; x++) {
+				int p = argb[start + x];
+				int alpha = p >>> 24;
+				int total = overBlack((p >> 16) & 0xFF, alpha) + overBlack((p >> 8) & 0xFF, alpha)
+						+ overBlack(p & 0xFF, alpha);
+				dst[offset + x] = total > sum ? (byte) 0xFF : 0;
+			}
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Scales a colour channel by its alpha, as drawing it over black would.
+	 */
+	private static int overBlack(int channel, int alpha) {
+		return alpha == 0xFF ? channel : (channel * alpha + 127) / 255;
+	}
+
+	/**
+	 * Luminance of every pixel value below size as the colour model reads it,
+	 * built on first use.
+	 */
+	private int[] getLuminanceTable(int size) {
+		if (luminanceTable == null) {
+			ColorModel model = image.getColorModel();
+			luminanceTable = new int[size];
+			for (int value = 0; value < size; value++) {
+				luminanceTable[value] = luminance(model.getRGB(value));
+			}
+		}
+		return luminanceTable;
+	}
+
+	private static int luminance(int r, int g, int b) {
+		return (LUMINANCE_RED * r + LUMINANCE_GREEN * g + LUMINANCE_BLUE * b + 0x8000) >> 16;
+	}
+
+	private static int luminance(int rgb) {
+		return luminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+	}
+
+	/**
+	 * Integer luminance of a packed pixel, with weights summing to 256.
+	 */
+	private static int grey(int p) {
+		return (77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF) + 29 * (p & 0xFF)) >> 8;
+	}
+}
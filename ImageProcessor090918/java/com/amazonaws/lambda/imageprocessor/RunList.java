@@ -0,0 +1,123 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * The runs of foreground pixels of an image, row by row, with the label given
+ * to each run. A run is kept as the x of its first pixel and the x after its
+ * last. The tables start small and double when they run out, so the memory
+ * grows with the number of runs rather than with the number of pixels, which
+ * for mostly background images is far smaller than a label per pixel.
+ *
+ * @author ryanorr
+ *
+ */
+class RunList {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int[] start;
+	private int[] end;
+	private int[] label;
+	private int size;
+
+	/**
+	 * The index of the first run of each row, and after the last row the number
+	 * of runs.
+	 */
+	private int[] rowFirst;
+
+	/**
+	 * @param height the height of the image
+	 */
+	RunList(int height) {
+		start = new int[INITIAL_CAPACITY];
+		end = new int[INITIAL_CAPACITY];
+		label = new int[INITIAL_CAPACITY];
+		rowFirst = new int[height + 1];
+	}
+
+	/**
+	 * Drops every run, keeping the tables for reuse.
+	 */
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Starts the runs of a row. Rows are added in order, each started even if it
+	 * has no runs, and the row after the last is started to end the image.
+	 */
+	void startRow(int y) {
+		rowFirst[y] = size;
+	}
+
+	/**
+	 * Adds a run to the row last started, after the runs already in it.
+	 *
+	 * @param x0 the x of the first pixel of the run
+	 * @param x1 the x after the last pixel of the run
+	 * @return the index of the run
+	 */
+	int add(int x0, int x1, int runLabel) {
+		if (size == start.length) grow();
+		start[size] = x0;
+		end[size] = x1;
+		label[size] = runLabel;
+		return size++;
+	}
+
+	/**
+	 * @return the index of the first run of a row
+	 */
+	int rowFirst(int y) {
+		return rowFirst[y];
+	}
+
+	/**
+	 * @return the index after the last run of a row
+	 */
+	int rowEnd(int y) {
+		return rowFirst[y + 1];
+	}
+
+	int getStart(int run) {
+		return start[run];
+	}
+
+	int getEnd(int run) {
+		return end[run];
+	}
+
+	int getLabel(int run) {
+		return label[run];
+	}
+
+	/**
+	 * Finds the label of a pixel from the runs of its row.
+	 *
+	 * @return the label, or 0 if the pixel is not in a run
+	 */
+	int labelAt(int x, int y) {
+		int lo = rowFirst[y];
+		int hi = rowFirst[y + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (end[mid] <= x) {
+				lo = mid + 1;
+			} else if (start[mid] > x) {
+				hi = mid - 1;
+			} else {
+				return label[mid];
+			}
+		}
+		return 0;
+	}
+
+	private void grow() {
+		int capacity = 2 * start.length;
+		start = Arrays.copyOf(start, capacity);
+		end = Arrays.copyOf(end, capacity);
+		label = Arrays.copyOf(label, capacity);
+	}
+}
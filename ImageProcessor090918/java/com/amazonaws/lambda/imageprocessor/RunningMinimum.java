@@ -0,0 +1,145 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Running minimum of a window sliding over the rows or columns of a plane,
+ * using the van Herk / Gil-Werman algorithm. The plane is cut into blocks as
+ * long as the window, and the minimum of each block is kept both from its
+ * start and from its end. Any window covers the end of one block and the start
+ * of the next, so its minimum is the smaller of two stored values. The cost is
+ * three comparisons per value whatever the length of the window.
+ * <p>
+ * A running maximum is found by taking the minimum of the inverted values.
+ *
+ * @author ryanorr
+ *
+ */
+public class RunningMinimum {
+
+	/**
+	 * Minimum of a window of k values sliding along each row.
+	 *
+	 * @param src the values, row by row
+	 * @param stride the number of values in a row
+	 * @param rows the number of rows
+	 * @param k the length of the window, at least 1
+	 * @return the minimum of the k values starting at each position, stride - k
+	 *         + 1 to a row
+	 */
+	public static int[] ofRows(int[] src, int stride, int rows, int k) {
+		int out = stride - k + 1;
+		int[] dst = new int[out * rows];
+		int[] g = new int[stride];
+		int[] h = new int[stride];
+		for (int row = 0; row < rows; row++) {
+			int base = row * stride;
+			// minimum from the start of each block
+			for (int i = 0, j = 0; i < stride; i++, j++) {
+				if (j == k) j = 0;
+				int v = src[base + i];
+				g[i] = j == 0 ? v : Math.min(g[i - 1], v);
+			}
+			// minimum to the end of each block
+			int last = stride - 1;
+			for (int i = last; i >= 0; i--) {
+				int v = src[base + i];
+				h[i] = i == last || (i + 1) % k == 0 ? v : Math.min(h[i + 1], v);
+			}
+			int dstBase = row * out;
+			for (int i = 0; i < out; i++) {
+				dst[dstBase + i] = Math.min(h[i], g[i + k - 1]);
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Minimum of a window of k values sliding down each column. The plane is
+	 * worked through a whole row at a time to keep the memory access in order.
+	 *
+	 * @param src the values, row by row
+	 * @param width the number of values in a row
+	 * @param rows the number of rows
+	 * @param k the length of the window, at least 1
+	 * @return the minimum of the k values starting at each position, rows - k + 1
+	 *         rows of width values
+	 */
+	public static int[] ofColumns(int[] src, int width, int rows, int k) {
+		int out = rows - k + 1;
+		int[] g = new int[rows * width];
+		int[] h = new int[rows * width];
+		for (int row = 0, j = 0; row < rows; row++, j++) {
+			if (j == k) j = 0;
+			int base = row * width;
+			if (j == 0) {
+				System.arraycopy(src, base, g, base, width);
+			} else {
+				for (int x = base; x < base + width; x++) {
+					g[x] = Math.min(g[x - width], src[x]);
+				}
+			}
+		}
+		for (int row = rows - 1; row >= 0; row--) {
+			int base = row * width;
+			if (row == rows - 1 || (row + 1) % k == 0) {
+				System.arraycopy(src, base, h, base, width);
+			} else {
+				for (int x = base; x < base + width; x++) {
+					h[x] = Math.min(h[x + width], src[x]);
+				}
+			}
+		}
+		int[] dst = new int[out * width];
+		int offset = (k - 1) * width;
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = Math.min(h[i], g[i + offset]);
+		}
+		return dst;
+	}
+
+	/**
+	 * Minimum of the square mask around each pixel, leaving out the pixel itself.
+	 * The mask is split into the rows above the pixel, the rows below it, and the
+	 * pixels to its left and right, each of which is a running minimum.
+	 *
+	 * @param padded the plane with a halo of radius pixels, padded with a value
+	 *            above every value in the plane where the mask should shrink
+	 * @return the minimum for each pixel of the plane, row by row, or a value at
+	 *         least the padding value where the mask holds no other pixels
+	 */
+	public static int[] ofNeighbours(PaddedRaster padded) {
+		int width = padded.getWidth();
+		int height = padded.getHeight();
+		int radius = padded.getRadius();
+		int stride = padded.getStride();
+		int rows = height + 2 * radius;
+		int[] data = padded.getData();
+		if (radius == 0) {
+			// no neighbours at all, every value is padding
+			int[] dst = new int[width * height];
+			Arrays.fill(dst, Integer.MAX_VALUE);
+			return dst;
+		}
+
+		// whole rows of the mask, then the minimum over radius of them
+		int[] full = ofRows(data, stride, rows, 2 * radius + 1);
+		int[] vertical = ofColumns(full, width, rows, radius);
+		// half rows either side of the centre
+		int[] half = ofRows(data, stride, rows, radius);
+		int halfStride = stride - radius + 1;
+
+		int[] dst = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			int above = y * width;
+			int below = (y + radius + 1) * width;
+			int centre = (y + radius) * halfStride;
+			for (int x = 0; x < width; x++) {
+				int v = Math.min(vertical[above + x], vertical[below + x]);
+				v = Math.min(v, Math.min(half[centre + x], half[centre + x + radius + 1]));
+				dst[above + x] = v;
+			}
+		}
+		return dst;
+	}
+}
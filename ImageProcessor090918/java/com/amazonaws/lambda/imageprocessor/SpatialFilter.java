@@ -12,6 +12,11 @@ public class SpatialFilter extends Filter implements RequestHandler<S3Event, Str
 	
 	private static int maskSize;
 	
+	/**
+	 * Padding for pixels outside the image, above any colour channel value.
+	 */
+	private static final int NO_PIXEL = 256;
+	
 	@Override
 	public String handleRequest(S3Event event, Context context) {
 		context.getLogger().log("Received event: " + event);
@@ -71,89 +76,57 @@ public class SpatialFilter extends Filter implements RequestHandler<S3Event, Str
 	}
 
 	/**
-	 * REFERENCE !!!
+	 * Clamps each colour channel of every pixel between the smallest and largest
+	 * values of the same channel in the mask around it, the pixel itself left
+	 * out. The minimum and maximum come from running minimums, so the cost per
+	 * pixel does not depend on the mask size.
 	 */
 	@Override
 	public void filterOperation() {
-        /**
-         * red, green and blue are a 2D square of odd size like 3x3, 5x5, 7x7, ...
-         * For simplicity storing it into 1D array.
-         */
-        int red[], green[], blue[];
-        
-        /** spatial Filter operation */
-        for(int y = 0; y < srcHeight; y++){
-            for(int x = 0; x < srcWidth; x++){
-                red = new int[maskSize * maskSize];
-                green = new int [maskSize * maskSize];
-                blue = new int [maskSize * maskSize];
-                int count = 0;
-                for(int r = y - (maskSize / 2); r <= y + (maskSize / 2); r++){
-                    for(int c = x - (maskSize / 2); c <= x + (maskSize / 2); c++){
-                        if(r < 0 || r >= srcHeight || c < 0 || c >= srcWidth){
-                            /** Some portion of the mask is outside the image. */
-                            continue;
-                        }else if(x == c && y == r){
-                            /** pixel below the center of the mask */
-                            continue;
-                        }else{
-                            red[count] = getRed(c, r);
-                            green[count] = getGreen(c, r);
-                            blue[count] = getBlue(c, r);
-                            count++;
-                        }
-                    }
-                }
-                
-                /** sort red, green, blue array */
-                Arrays.sort(red);
-                Arrays.sort(green);
-                Arrays.sort(blue);
-                
-                //RGB value of image pixel
-                int pixelRED = getRed(x, y);
-                int pixelGREEN = getGreen(x, y);
-                int pixelBLUE = getBlue(x, y);
-                
-                //final RGB value
-                int fRED, fGREEN, fBLUE;
-                
-                //compute final RGB value
-                if(pixelRED > red[maskSize*maskSize - 1]){
-                    fRED = red[maskSize*maskSize - 1];
-                }else if(pixelRED < red[maskSize*maskSize - count]){
-                    fRED = red[maskSize*maskSize - count];
-                }else{
-                    fRED = pixelRED;
-                }
-                
-                if(pixelGREEN > green[maskSize*maskSize - 1]){
-                    fGREEN = green[maskSize*maskSize - 1];
-                }else if(pixelGREEN < green[maskSize*maskSize - count]){
-                    fGREEN = green[maskSize*maskSize - count];
-                }else{
-                    fGREEN = pixelGREEN;
-                }
+        int[] pixels = srcRaster.getARGB();
+        int radius = maskSize / 2;
+        int totalPixels = srcWidth * srcHeight;
+        int[] plane = new int[totalPixels];
+
+        /** spatial Filter operation, one colour channel at a time */
+        Arrays.fill(outputPixels, getPixelValueFromARGBValue(255, 0, 0, 0));
+        for(int shift = 16; shift >= 0; shift -= 8){
+            for(int i = 0; i < totalPixels; i++){
+                plane[i] = (pixels[i] >> shift) & 0xFF;
+            }
+            /** the mask shrinks at the edges, so pad with a value above any channel */
+            int[] min = RunningMinimum.ofNeighbours(
+                    new PaddedRaster(plane, srcWidth, srcHeight, radius, BorderPolicy.SHRINK, NO_PIXEL));
+            
+            /** the maximum is the minimum of the inverted channel */
+            for(int i = 0; i < totalPixels; i++){
+                plane[i] = 255 - plane[i];
+            }
+            int[] max = RunningMinimum.ofNeighbours(
+                    new PaddedRaster(plane, srcWidth, srcHeight, radius, BorderPolicy.SHRINK, NO_PIXEL));
+            
+            for(int i = 0; i < totalPixels; i++){
+                int pixel = 255 - plane[i];
+                int high = 255 - max[i];
+                int low = min[i];
                 
-                if(pixelBLUE > blue[maskSize*maskSize - 1]){
-                    fBLUE = blue[maskSize*maskSize - 1];
-                }else if(pixelBLUE < blue[maskSize*maskSize - count]){
-                    fBLUE = blue[maskSize*maskSize - count];
+                //compute final value, unchanged if the mask holds no other pixels
+                int f;
+                if(low > high){
+                    f = pixel;
+                }else if(pixel > high){
+                    f = high;
+                }else if(pixel < low){
+                    f = low;
                 }else{
-                    fBLUE = pixelBLUE;
+                    f = pixel;
                 }
-                
-                /** save spatial value in outputPixels array */
-                int p = getPixelValueFromARGBValue(255, fRED, fGREEN, fBLUE);
-                outputPixels[x+y*srcWidth] = p;
+                outputPixels[i] |= f << shift;
             }
         }
+        
         /** Write the output pixels to the image pixels */
-        for(int y = 0; y < srcHeight; y++){
-            for(int x = 0; x < srcWidth; x++){
-                srcImage.setRGB(x, y, outputPixels[x+y*srcWidth]);
-            }
-        }
+        super.writeOutputPixels();
     }
 	
     /**
@@ -168,47 +141,5 @@ public class SpatialFilter extends Filter implements RequestHandler<S3Event, Str
     public static int getPixelValueFromARGBValue(int a, int r, int g, int b){
         return (a<<24) | (r<<16) | (g<<8) | b;
     }
-    
-    /**
-     * This method will return the amount of red value between 0-255 at the pixel (x,y)
-     * 
-     * @param x the x coordinate of the pixel
-     * @param y the y coordinate of the pixel
-     * @return the amount of red
-     * 
-     * 0 means none
-     * 255 means fully red
-     */
-    public int getRed(int x, int y){
-        return (outputPixels[x+(y*srcWidth)] >> 16) & 0xFF;
-    }
-    
-    /**
-     * This method will return the amount of green value between 0-255 at the pixel (x,y)
-     * 
-     * @param x the x coordinate of the pixel
-     * @param y the y coordinate of the pixel 
-     * @return the amount of green
-     * 
-     * 0 means none
-     * 255 means fully green
-     */
-    public int getGreen(int x, int y){
-        return (outputPixels[x+(y*srcWidth)] >> 8) & 0xFF;
-    }
-    
-    /**
-     * This method will return the amount of blue value between 0-255 at the pixel (x,y)
-     * 
-     * @param x the x coordinate of the pixel
-     * @param y the y coordinate of the pixel
-     * @return the amount of blue
-     * 
-     * 0 means none
-     * 255 means fully blue
-     */
-    public int getBlue(int x, int y){
-        return outputPixels[x+(y*srcWidth)] & 0xFF;
-    }
 }
 
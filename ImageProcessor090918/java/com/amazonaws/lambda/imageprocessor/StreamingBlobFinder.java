@@ -0,0 +1,210 @@
+package com.amazonaws.lambda.imageprocessor;
+
+/**
+ * Finds the same blobs as BlobFinder in an image given a row at a time, for
+ * images too large to hold whole. Only two rows of labels are kept, with a
+ * table of the components that reach the last row. Once a row is labelled,
+ * every component it does not reach is finished, and its blob is passed on
+ * straight away; the rest are given new labels in a fresh table. The working
+ * memory grows with the width of the image rather than with its area: at most
+ * about 300 bytes per column, most of it the two tables of labels.
+ * <p>
+ * Blobs are passed on as they are finished rather than in the order BlobFinder
+ * lists them, and there is no image of coloured blobs. The blobs finished by
+ * the same row are passed on in the raster order of their first pixels.
+ * <p>
+ * The finder is designed for single threaded use only.
+ *
+ * @author ryanorr
+ *
+ */
+public class StreamingBlobFinder {
+
+	/**
+	 * Receives each blob as soon as no later row can add to it.
+	 */
+	public interface BlobListener {
+		/**
+		 * @param blob the blob
+		 */
+		void blobFound(BlobFinder.Blob blob);
+	}
+
+	private int width;
+	private int minBlobMass;
+	private int maxBlobMass;
+	private byte matchVal;
+	private BlobListener listener;
+	private int y;
+
+	/**
+	 * The labels of the last row and of the row being labelled.
+	 */
+	private int[] previous;
+	private int[] current;
+
+	/**
+	 * The components reaching the last row, and the table that replaces it once
+	 * the next row is labelled.
+	 */
+	private LabelTable labels;
+	private LabelTable nextLabels;
+
+	/**
+	 * The new label of each component that goes on, or 0 once finished.
+	 */
+	private int[] relabel;
+
+	/**
+	 * The labels of the top left and top right pixels, whose blobs are ignored.
+	 */
+	private int topLeft;
+	private int topRight;
+
+	/**
+	 * @param width the width of the image
+	 * @param minBlobMass the smallest mass of blob to pass on
+	 * @param maxBlobMass the largest mass of blob to pass on, or -1 for no limit
+	 * @param matchVal the value of the pixels of blobs
+	 * @param listener receives the blobs
+	 */
+	public StreamingBlobFinder(int width, int minBlobMass, int maxBlobMass, byte matchVal, BlobListener listener) {
+		if (width < 1 || listener == null) throw new IllegalArgumentException();
+		this.width = width;
+		this.minBlobMass = minBlobMass;
+		this.maxBlobMass = maxBlobMass;
+		this.matchVal = matchVal;
+		this.listener = listener;
+
+		previous = new int[width];
+		current = new int[width];
+		labels = new LabelTable(width);
+		nextLabels = new LabelTable(width);
+		// each row makes at most one label for every other pixel, and carries on at
+		// most as many
+		relabel = new int[width + 2];
+	}
+
+	/**
+	 * @return the number of rows given so far
+	 */
+	public int getRowCount() {
+		return y;
+	}
+
+	/**
+	 * Labels the next row of the image and passes on the blobs it finishes.
+	 *
+	 * @param srcData the pixels, 1 byte each
+	 * @param offset the index of the first pixel of the row
+	 */
+	public void addRow(byte[] srcData, int offset) {
+		if (offset < 0 || offset + width > srcData.length) throw new IllegalArgumentException();
+
+		int[] swap = previous;
+		previous = current;
+		current = swap;
+
+		// This is the neighbouring pixel pattern. For position X, A, B, C & D are
+		// checked
+		// A B C
+		// D X
+		for (int x = 0; x < width; x++) {
+			current[x] = 0;
+			if (srcData[offset + x] != matchVal)
+				continue;
+
+			int aLabel = (x > 0 && y > 0) ? previous[x - 1] : 0;
+			int bLabel = (y > 0) ? previous[x] : 0;
+			int cLabel = (x < width - 1 && y > 0) ? previous[x + 1] : 0;
+			int dLabel = (x > 0) ? current[x - 1] : 0;
+
+			if (aLabel == 0 && bLabel == 0 && cLabel == 0 && dLabel == 0) {
+				current[x] = labels.add(x, y);
+			} else {
+				int first = dLabel != 0 ? dLabel : aLabel != 0 ? aLabel : bLabel != 0 ? bLabel : cLabel;
+				current[x] = first;
+				labels.addPixel(first, x, y);
+
+				if (aLabel != 0)
+					labels.union(first, aLabel);
+				if (bLabel != 0)
+					labels.union(first, bLabel);
+				if (cLabel != 0)
+					labels.union(first, cLabel);
+			}
+		}
+
+		if (y == 0) {
+			topLeft = current[0];
+			topRight = current[width - 1];
+		}
+		y++;
+		finishBlobs(false);
+	}
+
+	/**
+	 * Passes on the blobs that reach the last row. No more rows may be given.
+	 */
+	public void finish() {
+		if (y == 0)
+			return;
+		finishBlobs(true);
+		y = 0;
+		topLeft = 0;
+		topRight = 0;
+	}
+
+	/**
+	 * Passes on the components the row just labelled does not reach, or all of
+	 * them after the last row, and gives the rest new labels in order.
+	 */
+	private void finishBlobs(boolean last) {
+		labels.resolve();
+
+		// Blobs that butt against corners are ignored
+		int corner1 = topLeft == 0 ? 0 : labels.root(topLeft);
+		int corner2 = topRight == 0 ? 0 : labels.root(topRight);
+		int corner3 = last && current[0] != 0 ? labels.root(current[0]) : 0;
+		int corner4 = last && current[width - 1] != 0 ? labels.root(current[width - 1]) : 0;
+
+		int size = labels.size();
+		for (int i = 1; i < size; i++) {
+			relabel[i] = 0;
+		}
+		if (!last) {
+			for (int x = 0; x < width; x++) {
+				if (current[x] != 0)
+					relabel[labels.root(current[x])] = -1;
+			}
+		}
+
+		nextLabels.clear();
+		for (int i = 1; i < size; i++) {
+			if (!labels.isRoot(i))
+				continue;
+			if (relabel[i] == -1) {
+				relabel[i] = nextLabels.copy(labels, i);
+				continue;
+			}
+			if (i == corner1 || i == corner2 || i == corner3 || i == corner4)
+				continue;
+
+			int mass = labels.getMass(i);
+			if (mass >= minBlobMass && (mass <= maxBlobMass || maxBlobMass == -1)) {
+				listener.blobFound(labels.createBlob(i));
+			}
+		}
+
+		for (int x = 0; x < width; x++) {
+			if (current[x] != 0)
+				current[x] = relabel[labels.root(current[x])];
+		}
+		topLeft = topLeft == 0 ? 0 : relabel[labels.root(topLeft)];
+		topRight = topRight == 0 ? 0 : relabel[labels.root(topRight)];
+
+		LabelTable swap = labels;
+		labels = nextLabels;
+		nextLabels = swap;
+	}
+}
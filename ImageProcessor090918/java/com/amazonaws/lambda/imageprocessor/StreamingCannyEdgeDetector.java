@@ -0,0 +1,608 @@
+package com.amazonaws.lambda.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A Canny edge detector that works through the source image from top to
+ * bottom, keeping only the rows each stage needs in ring buffers, for images
+ * too large for the full image arrays of CannyEdgeDetector. The working memory
+ * grows with the width of the image times the width of the Gaussian kernel
+ * rather than with its area: about 24 * kernel width + 40 bytes per column,
+ * against 24 bytes per pixel.
+ * <p>
+ * The edges are exactly those found by CannyEdgeDetector with the same
+ * settings and Smoothing.CONVOLUTION. Smoothing.RECURSIVE runs each column from
+ * the bottom back up, so it cannot be streamed.
+ * <p>
+ * Hysteresis decides whether a pixel is an edge from pixels that may lie
+ * anywhere below it, so the image is streamed twice. The first pass labels the
+ * connected pixels above the low threshold a row at a time, joining the labels
+ * that meet, and notes which labels reach the high threshold. The second pass
+ * labels the rows again in the same way and writes each row of edges as soon
+ * as it is labelled. Only two rows of labels are kept, but the label tables
+ * grow with the number of separate edge fragments in the image.
+ * <p>
+ * The detector is designed for single threaded use only.
+ *
+ * @author ryanorr
+ *
+ */
+public class StreamingCannyEdgeDetector {
+
+	/**
+	 * Receives the rows of edges for one pair of thresholds, from top to bottom.
+	 */
+	public interface EdgeRowWriter {
+		/**
+		 * @param y the row
+		 * @param edges whether each pixel of the row is an edge; the array is
+		 *            reused for the next row
+		 */
+		void writeRow(int y, boolean[] edges);
+	}
+
+	private int width;
+	private int height;
+	private BufferedImage sourceImage;
+	private BufferedImage edgesImage;
+
+	private float gaussianKernelRadius;
+	private float lowThreshold;
+	private float highThreshold;
+	private int gaussianKernelWidth;
+	private boolean contrastNormalized;
+	private CannyEdgeDetector.GradientMagnitude gradientMagnitude;
+
+	private float[] kernel;
+	private float[] diffKernel;
+	private int kwidth;
+
+	private RasterAccess raster;
+	private int[] remap;
+
+	/**
+	 * The last 2 * kwidth - 1 rows of luminance and of the convolutions, enough
+	 * for one row of the next stage.
+	 */
+	private int[][] data;
+	private float[][] xConv;
+	private float[][] yConv;
+
+	/**
+	 * The last three rows of the gradients, enough for one row of non-maximal
+	 * suppression.
+	 */
+	private float[][] xGradient;
+	private float[][] yGradient;
+	private float[][] gradMagnitude;
+
+	private int[] magnitude;
+
+	/**
+	 * Constructs a new detector with the same default parameters as
+	 * CannyEdgeDetector.
+	 */
+	public StreamingCannyEdgeDetector() {
+		lowThreshold = 2.5f;
+		highThreshold = 7.5f;
+		gaussianKernelRadius = 2f;
+		gaussianKernelWidth = 16;
+		contrastNormalized = false;
+		gradientMagnitude = CannyEdgeDetector.GradientMagnitude.EXACT;
+	}
+
+	/**
+	 * @return the source image, or null
+	 */
+	public BufferedImage getSourceImage() {
+		return sourceImage;
+	}
+
+	/**
+	 * @param image the image in which edges will be detected
+	 */
+	public void setSourceImage(BufferedImage image) {
+		sourceImage = image;
+	}
+
+	/**
+	 * @return a TYPE_BYTE_BINARY image in which edge pixels are white and all
+	 *         other pixels black, or null if process has not been called
+	 */
+	public BufferedImage getEdgesImage() {
+		return edgesImage;
+	}
+
+	/**
+	 * @return the low hysteresis threshold, 2.5 by default
+	 */
+	public float getLowThreshold() {
+		return lowThreshold;
+	}
+
+	/**
+	 * @param threshold the low hysteresis threshold, at least 0
+	 */
+	public void setLowThreshold(float threshold) {
+		if (threshold < 0) throw new IllegalArgumentException();
+		lowThreshold = threshold;
+	}
+
+	/**
+	 * @return the high hysteresis threshold, 7.5 by default
+	 */
+	public float getHighThreshold() {
+		return highThreshold;
+	}
+
+	/**
+	 * @param threshold the high hysteresis threshold, at least 0
+	 */
+	public void setHighThreshold(float threshold) {
+		if (threshold < 0) throw new IllegalArgumentException();
+		highThreshold = threshold;
+	}
+
+	/**
+	 * @return the maximum number of pixels across which the Gaussian kernel is
+	 *         applied, 16 by default
+	 */
+	public int getGaussianKernelWidth() {
+		return gaussianKernelWidth;
+	}
+
+	/**
+	 * @param gaussianKernelWidth the maximum number of pixels across which the
+	 *            Gaussian kernel is applied, at least 2
+	 */
+	public void setGaussianKernelWidth(int gaussianKernelWidth) {
+		if (gaussianKernelWidth < 2) throw new IllegalArgumentException();
+		this.gaussianKernelWidth = gaussianKernelWidth;
+	}
+
+	/**
+	 * @return the radius of the Gaussian kernel in pixels, 2 by default
+	 */
+	public float getGaussianKernelRadius() {
+		return gaussianKernelRadius;
+	}
+
+	/**
+	 * @param gaussianKernelRadius the radius of the Gaussian kernel in pixels,
+	 *            at least 0.1
+	 */
+	public void setGaussianKernelRadius(float gaussianKernelRadius) {
+		if (gaussianKernelRadius < 0.1f) throw new IllegalArgumentException();
+		this.gaussianKernelRadius = gaussianKernelRadius;
+	}
+
+	/**
+	 * @return whether the histogram of the luminance is linearized first, false
+	 *         by default
+	 */
+	public boolean isContrastNormalized() {
+		return contrastNormalized;
+	}
+
+	/**
+	 * @param contrastNormalized whether the histogram of the luminance is
+	 *            linearized first, which costs one more pass over the image
+	 */
+	public void setContrastNormalized(boolean contrastNormalized) {
+		this.contrastNormalized = contrastNormalized;
+	}
+
+	/**
+	 * @return how the magnitude of the gradient is computed, EXACT by default
+	 */
+	public CannyEdgeDetector.GradientMagnitude getGradientMagnitude() {
+		return gradientMagnitude;
+	}
+
+	/**
+	 * @param gradientMagnitude how the magnitude of the gradient is computed,
+	 *            not null
+	 */
+	public void setGradientMagnitude(CannyEdgeDetector.GradientMagnitude gradientMagnitude) {
+		if (gradientMagnitude == null) throw new IllegalArgumentException();
+		this.gradientMagnitude = gradientMagnitude;
+	}
+
+	/**
+	 * Detects the edges in the source image with the thresholds set on the
+	 * detector.
+	 */
+	public void process() {
+		process(new float[] { lowThreshold }, new float[] { highThreshold });
+	}
+
+	/**
+	 * Detects edges in the source image once for each of several pairs of
+	 * hysteresis thresholds, in the same way as
+	 * CannyEdgeDetector.process(float[], float[]). Each image holds one bit per
+	 * pixel.
+	 *
+	 * @param lowThresholds the low hysteresis threshold of each pair
+	 * @param highThresholds the high hysteresis threshold of each pair
+	 * @return an image of the edges for each pair, of the same form as
+	 *         getEdgesImage
+	 */
+	public BufferedImage[] process(float[] lowThresholds, float[] highThresholds) {
+		int w = sourceImage.getWidth();
+		int h = sourceImage.getHeight();
+		BufferedImage[] images = new BufferedImage[lowThresholds.length];
+		EdgeRowWriter[] writers = new EdgeRowWriter[images.length];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+			writers[i] = createImageWriter(images[i]);
+		}
+		process(lowThresholds, highThresholds, writers);
+		edgesImage = images[images.length - 1];
+		return images;
+	}
+
+	/**
+	 * Detects edges in the source image once for each of several pairs of
+	 * hysteresis thresholds, handing each row of edges to a writer as soon as it
+	 * is found, so the edges need never be held in full.
+	 *
+	 * @param lowThresholds the low hysteresis threshold of each pair
+	 * @param highThresholds the high hysteresis threshold of each pair
+	 * @param writers the writer for the edges of each pair
+	 */
+	public void process(float[] lowThresholds, float[] highThresholds, EdgeRowWriter[] writers) {
+		if (lowThresholds.length == 0 || lowThresholds.length != highThresholds.length
+				|| writers.length != lowThresholds.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < lowThresholds.length; i++) {
+			if (lowThresholds[i] < 0 || highThresholds[i] < 0) throw new IllegalArgumentException();
+		}
+		width = sourceImage.getWidth();
+		height = sourceImage.getHeight();
+		raster = new RasterAccess(sourceImage);
+		remap = contrastNormalized ? createContrastRemap() : null;
+		initRings();
+
+		Hysteresis[] hysteresis = new Hysteresis[lowThresholds.length];
+		for (int i = 0; i < hysteresis.length; i++) {
+			int low = Math.round(lowThresholds[i] * CannyEdgeDetector.MAGNITUDE_SCALE);
+			int high = Math.round(highThresholds[i] * CannyEdgeDetector.MAGNITUDE_SCALE);
+			hysteresis[i] = new Hysteresis(width, low, high);
+		}
+		// the first pass finds the labels that reach the high threshold
+		streamMagnitudes((y, row) -> {
+			for (Hysteresis pair : hysteresis) {
+				pair.labelRow(row);
+			}
+		});
+		for (Hysteresis pair : hysteresis) {
+			pair.resolve();
+		}
+		// the second pass writes out the edges of every row
+		boolean[] edges = new boolean[width];
+		streamMagnitudes((y, row) -> {
+			for (int i = 0; i < hysteresis.length; i++) {
+				hysteresis[i].edgeRow(row, edges);
+				writers[i].writeRow(y, edges);
+			}
+		});
+		raster = null;
+	}
+
+	/**
+	 * Receives each row of the magnitudes left by non-maximal suppression.
+	 */
+	private interface MagnitudeRowReader {
+		void readRow(int y, int[] magnitudes);
+	}
+
+	private void initRings() {
+		kernel = new float[gaussianKernelWidth];
+		diffKernel = new float[gaussianKernelWidth];
+		kwidth = CannyEdgeDetector.createKernels(gaussianKernelRadius, gaussianKernelWidth, kernel, diffKernel);
+		int rows = 2 * kwidth - 1;
+		data = new int[rows][width];
+		xConv = new float[rows][width];
+		yConv = new float[rows][width];
+		xGradient = new float[3][width];
+		yGradient = new float[3][width];
+		gradMagnitude = new float[3][width];
+		magnitude = new int[width];
+	}
+
+	//NOTE: Every stage computes the same values from the same inputs in the
+	//same order as CannyEdgeDetector, including the pixels near the border that
+	//it leaves at zero, so the edges are identical. Each stage runs as soon as
+	//the rows it reads are ready; the gradients lag kwidth - 1 rows behind the
+	//luminance and the suppression one row more.
+	private void streamMagnitudes(MagnitudeRowReader reader) {
+		int rings = data.length;
+		int lumRows = 0;
+		int convRows = 0;
+		for (int y = 0; y < height; y++) {
+			int lastConv = Math.min(y + kwidth - 1, height - 1);
+			for (; convRows <= lastConv; convRows++) {
+				int lastLum = Math.min(convRows + kwidth - 1, height - 1);
+				for (; lumRows <= lastLum; lumRows++) {
+					readLuminance(lumRows, data[lumRows % rings]);
+				}
+				convolve(convRows);
+			}
+			computeGradients(y);
+			if (y > 0) {
+				suppressNonMaxima(y - 1);
+				reader.readRow(y - 1, magnitude);
+			}
+		}
+		if (height > 0) {
+			suppressNonMaxima(height - 1);
+			reader.readRow(height - 1, magnitude);
+		}
+	}
+
+	private void readLuminance(int y, int[] row) {
+		raster.getLuminance(y, row, 0);
+		if (remap != null) {
+			for (int x = 0; x < width; x++) {
+				row[x] = remap[row[x]];
+			}
+		}
+	}
+
+	private int[] createContrastRemap() {
+		int[] histogram = new int[256];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			raster.getLuminance(y, row, 0);
+			for (int x = 0; x < width; x++) {
+				histogram[row[x]]++;
+			}
+		}
+		return CannyEdgeDetector.createContrastRemap(histogram, width * height);
+	}
+
+	private boolean isConvolved(int y) {
+		return y >= kwidth - 1 && y < height - (kwidth - 1);
+	}
+
+	private void convolve(int y) {
+		int rings = data.length;
+		float[] xRow = xConv[y % rings];
+		float[] yRow = yConv[y % rings];
+		if (!isConvolved(y)) {
+			Arrays.fill(xRow, 0f);
+			Arrays.fill(yRow, 0f);
+			return;
+		}
+		int[] row = data[y % rings];
+		int initX = kwidth - 1;
+		int maxX = width - (kwidth - 1);
+		for (int x = initX; x < maxX; x++) {
+			float sumX = row[x] * kernel[0];
+			yRow[x] = sumX;
+			for (int i = 1; i < kwidth; i++) {
+				sumX += kernel[i] * (row[x - i] + row[x + i]);
+			}
+			xRow[x] = sumX;
+		}
+		//the sums down the columns take the rows in turn, each sum still adding
+		//up its terms in the same order
+		for (int i = 1; i < kwidth; i++) {
+			int[] above = data[(y - i) % rings];
+			int[] below = data[(y + i) % rings];
+			float k = kernel[i];
+			for (int x = initX; x < maxX; x++) {
+				yRow[x] += k * (above[x] + below[x]);
+			}
+		}
+	}
+
+	private void computeGradients(int y) {
+		int rings = data.length;
+		float[] xGrad = xGradient[y % 3];
+		float[] yGrad = yGradient[y % 3];
+		float[] mag = gradMagnitude[y % 3];
+		Arrays.fill(xGrad, 0f);
+		Arrays.fill(yGrad, 0f);
+		Arrays.fill(mag, 0f);
+		if (!isConvolved(y)) return;
+
+		float[] yRow = yConv[y % rings];
+		for (int x = kwidth - 1; x < width - (kwidth - 1); x++) {
+			float sum = 0f;
+			for (int i = 1; i < kwidth; i++) {
+				sum += diffKernel[i] * (yRow[x - i] - yRow[x + i]);
+			}
+			xGrad[x] = sum;
+		}
+		for (int i = 1; i < kwidth; i++) {
+			float[] above = xConv[(y - i) % rings];
+			float[] below = xConv[(y + i) % rings];
+			float k = diffKernel[i];
+			for (int x = kwidth; x < width - kwidth; x++) {
+				yGrad[x] += k * (above[x] - below[x]);
+			}
+		}
+		for (int x = kwidth - 1; x < width - (kwidth - 1); x++) {
+			mag[x] = gradientMagnitude.of(xGrad[x], yGrad[x]);
+		}
+	}
+
+	private void suppressNonMaxima(int y) {
+		Arrays.fill(magnitude, 0);
+		if (y < kwidth || y >= height - kwidth) return;
+		float[] xGrad = xGradient[y % 3];
+		float[] yGrad = yGradient[y % 3];
+		float[] above = gradMagnitude[(y - 1) % 3];
+		float[] mag = gradMagnitude[y % 3];
+		float[] below = gradMagnitude[(y + 1) % 3];
+		for (int x = kwidth; x < width - kwidth; x++) {
+			float gradMag = mag[x];
+			if (CannyEdgeDetector.isMaximum(xGrad[x], yGrad[x], gradMag,
+					above[x], below[x], mag[x - 1], mag[x + 1],
+					above[x + 1], below[x + 1], below[x - 1], above[x - 1])) {
+				magnitude[x] = CannyEdgeDetector.scaleMagnitude(gradMag);
+			}
+		}
+	}
+
+	private EdgeRowWriter createImageWriter(BufferedImage image) {
+		byte[] bits = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		int stride = (image.getWidth() + 7) / 8;
+		return (y, edges) -> {
+			int offset = y * stride;
+			for (int x = 0; x < edges.length; x++) {
+				if (edges[x]) bits[offset + (x >> 3)] |= 0x80 >> (x & 7);
+			}
+		};
+	}
+
+	//NOTE: A pixel of the edge map joins the labels of the neighbours before it
+	//in raster order: the one to its left and the three above it. It takes the
+	//first label it finds, or a new one, so both passes give every pixel the
+	//same provisional label. The first pass also joins the labels it meets into
+	//sets, rooted at the smallest label as in CannyEdgeDetector.
+	private static class Hysteresis {
+
+		private final int width;
+		private final int low;
+		private final int high;
+		private int[] previous;
+		private int[] current;
+		private int[] parent;
+		private BitSet strong;
+		private int labels;
+
+		Hysteresis(int width, int low, int high) {
+			this.width = width;
+			this.low = low;
+			this.high = high;
+			parent = new int[64];
+			strong = new BitSet();
+		}
+
+		/**
+		 * Labels a row for the first pass. Pixels at or above the high threshold
+		 * are edges even below the low one, as they are in CannyEdgeDetector,
+		 * so they join the neighbours they touch.
+		 */
+		void labelRow(int[] magnitudes) {
+			nextRow();
+			for (int x = 0; x < width; x++) {
+				int m = magnitudes[x];
+				if (m < low && m < high) {
+					current[x] = -1;
+					continue;
+				}
+				int label = -1;
+				for (int i = 0; i < 4; i++) {
+					int neighbour = neighbour(x, i);
+					if (neighbour < 0) continue;
+					if (label < 0) {
+						label = neighbour;
+					} else {
+						union(label, neighbour);
+					}
+				}
+				if (label < 0) label = newLabel();
+				current[x] = label;
+				if (m >= high) strong.set(label);
+			}
+		}
+
+		/**
+		 * Leaves each label marked if its set reaches the high threshold, and
+		 * starts the label numbering again for the second pass.
+		 */
+		void resolve() {
+			for (int label = 0; label < labels; label++) {
+				if (strong.get(label)) strong.set(find(label));
+			}
+			for (int label = 0; label < labels; label++) {
+				if (strong.get(find(label))) strong.set(label);
+			}
+			parent = null;
+			previous = null;
+			current = null;
+			labels = 0;
+		}
+
+		/**
+		 * Labels a row for the second pass and finds its edges.
+		 */
+		void edgeRow(int[] magnitudes, boolean[] edges) {
+			nextRow();
+			for (int x = 0; x < width; x++) {
+				int m = magnitudes[x];
+				if (m < low && m < high) {
+					current[x] = -1;
+					edges[x] = false;
+					continue;
+				}
+				int label = -1;
+				for (int i = 0; i < 4 && label < 0; i++) {
+					label = neighbour(x, i);
+				}
+				if (label < 0) label = labels++;
+				current[x] = label;
+				edges[x] = strong.get(label);
+			}
+		}
+
+		private void nextRow() {
+			if (current == null) {
+				current = new int[width];
+				previous = new int[width];
+				Arrays.fill(current, -1);
+			}
+			int[] row = previous;
+			previous = current;
+			current = row;
+		}
+
+		/**
+		 * @return the label of the left, upper left, upper or upper right
+		 *         neighbour of a pixel, or -1
+		 */
+		private int neighbour(int x, int i) {
+			switch (i) {
+			case 0:
+				return x > 0 ? current[x - 1] : -1;
+			case 1:
+				return x > 0 ? previous[x - 1] : -1;
+			case 2:
+				return previous[x];
+			default:
+				return x < width - 1 ? previous[x + 1] : -1;
+			}
+		}
+
+		private int newLabel() {
+			if (labels == parent.length) parent = Arrays.copyOf(parent, 2 * labels);
+			parent[labels] = labels;
+			return labels++;
+		}
+
+		private int find(int label) {
+			while (parent[label] != label) {
+				parent[label] = parent[parent[label]];
+				label = parent[label];
+			}
+			return label;
+		}
+
+		private void union(int label1, int label2) {
+			int r1 = find(label1);
+			int r2 = find(label2);
+			if (r1 < r2) {
+				parent[r2] = r1;
+			} else if (r2 < r1) {
+				parent[r1] = r2;
+			}
+		}
+	}
+}